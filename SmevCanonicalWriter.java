@@ -0,0 +1,310 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Запись результата трансформации "urn://smev-gov-ru/xmldsig/transform" в UTF-8 без
+ * XMLStreamWriter/XMLEventWriter.
+ *
+ * Формат побайтно совпадает с тем, что пишет StAX из состава JDK при вызовах, которые делает
+ * событийная реализация: начальный тег закрывается сразу после атрибутов (пустой элемент всегда
+ * записывается как &lt;a&gt;&lt;/a&gt;), в тексте экранируются &lt;, &amp; и &gt;, в значениях
+ * атрибутов и namespace URI - ещё и кавычка, табуляция и переводы строк пишутся как есть,
+ * суррогатная пара - одной 4-байтовой последовательностью, даже если пришла двумя вызовами.
+ *
+ * Вывод копится в собственном буфере и передаётся в выходной поток блоками. Буферы сохраняются
+ * между документами. Экземпляр не потокобезопасен.
+ */
+final class SmevCanonicalWriter {
+    
+    private static final int BUFFER_SIZE = 8192;
+    private static final int SCRATCH_SIZE = 1024;
+    
+    private static final byte[] LT = ascii("&lt;");
+    private static final byte[] GT = ascii("&gt;");
+    private static final byte[] AMP = ascii("&amp;");
+    private static final byte[] QUOT = ascii("&quot;");
+    private static final byte[] XMLNS = ascii(" xmlns:");
+    private static final byte[] CDATA_START = ascii("<![CDATA[");
+    private static final byte[] CDATA_END = ascii("]]>");
+    
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int count;
+    private final char[] scratch = new char[SCRATCH_SIZE];
+    private char pendingHighSurrogate;
+    private OutputStream out;
+    
+    /**
+     * Задаёт выходной поток для следующего документа.
+     */
+    void setOutput(OutputStream argOut) {
+        out = argOut;
+        count = 0;
+        pendingHighSurrogate = 0;
+    }
+    
+    /**
+     * Пишет "&lt;prefix:localName" без закрывающей скобки: за ним следуют namespace и атрибуты.
+     */
+    void writeStartElement(String argPrefix, String argLocalName) throws IOException {
+        writeByte('<');
+        writeName(argPrefix, argLocalName);
+    }
+    
+    void writeNamespace(String argPrefix, String argNamespaceURI) throws IOException {
+        writeBytes(XMLNS);
+        writeRaw(argPrefix);
+        writeByte('=');
+        writeByte('"');
+        writeEscaped(argNamespaceURI, true);
+        writeByte('"');
+    }
+    
+    /**
+     * @param argPrefix префикс или пустая строка для атрибута без namespace
+     */
+    void writeAttribute(String argPrefix, String argLocalName, String argValue)
+            throws IOException {
+        writeAttributeStart(argPrefix, argLocalName);
+        writeAttributeValue(argValue);
+        writeAttributeEnd();
+    }
+    
+    /**
+     * Пишет " prefix:localName=" и открывающую кавычку значения.
+     */
+    void writeAttributeStart(String argPrefix, String argLocalName) throws IOException {
+        writeByte(' ');
+        writeName(argPrefix, argLocalName);
+        writeByte('=');
+        writeByte('"');
+    }
+    
+    void writeAttributeValue(String argValue) throws IOException {
+        writeEscaped(argValue, true);
+    }
+    
+    void writeAttributeEnd() throws IOException {
+        writeByte('"');
+    }
+    
+    /**
+     * Пишет заранее подготовленные байты разметки (шаблоны тегов {@link SmevTransformPlans}).
+     */
+    void writeMarkup(byte[] argBytes) throws IOException {
+        if (argBytes.length > BUFFER_SIZE) {
+            if (count > 0) {
+                drain();
+            }
+            out.write(argBytes);
+            return;
+        }
+        writeBytes(argBytes);
+    }
+    
+    void closeStartElement() throws IOException {
+        writeByte('>');
+    }
+    
+    void writeEndElement(String argPrefix, String argLocalName) throws IOException {
+        writeByte('<');
+        writeByte('/');
+        writeName(argPrefix, argLocalName);
+        writeByte('>');
+    }
+    
+    void writeCharacters(char[] argText, int argStart, int argLength) throws IOException {
+        writeEscaped(argText, argStart, argStart + argLength, false);
+    }
+    
+    void writeCData(char[] argText, int argStart, int argLength) throws IOException {
+        writeBytes(CDATA_START);
+        writeChars(argText, argStart, argStart + argLength);
+        writeBytes(CDATA_END);
+    }
+    
+    /**
+     * Передаёт накопленное в выходной поток.
+     */
+    void flush() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+        out.flush();
+    }
+    
+    /**
+     * Передаёт накопленное в выходной поток и отпускает его. Сам поток не закрывается.
+     */
+    void close() throws IOException {
+        try {
+            if (out != null) {
+                flush();
+            }
+        } finally {
+            out = null;
+            count = 0;
+        }
+    }
+    
+    private void writeName(String argPrefix, String argLocalName) throws IOException {
+        if (argPrefix.length() != 0) {
+            writeRaw(argPrefix);
+            writeByte(':');
+        }
+        writeRaw(argLocalName);
+    }
+    
+    private void writeRaw(String argText) throws IOException {
+        for (int start = 0, length = argText.length(); start < length; start += SCRATCH_SIZE) {
+            int end = Math.min(length, start + SCRATCH_SIZE);
+            argText.getChars(start, end, scratch, 0);
+            writeChars(scratch, 0, end - start);
+        }
+    }
+    
+    /**
+     * Строка копируется в буфер блоками фиксированного размера: длинное значение атрибута не
+     * увеличивает буферы. Суррогатная пара на границе блоков собирается в writeChars.
+     */
+    private void writeEscaped(String argText, boolean argAttribute) throws IOException {
+        for (int start = 0, length = argText.length(); start < length; start += SCRATCH_SIZE) {
+            int end = Math.min(length, start + SCRATCH_SIZE);
+            argText.getChars(start, end, scratch, 0);
+            writeEscaped(scratch, 0, end - start, argAttribute);
+        }
+    }
+    
+    private void writeEscaped(char[] argText, int argStart, int argEnd, boolean argAttribute)
+            throws IOException {
+        int runStart = argStart;
+        for (int i = argStart; i < argEnd; i++) {
+            byte[] entity;
+            switch (argText[i]) {
+                case '<':
+                    entity = LT;
+                    break;
+                case '>':
+                    entity = GT;
+                    break;
+                case '&':
+                    entity = AMP;
+                    break;
+                case '"':
+                    if (!argAttribute) {
+                        continue;
+                    }
+                    entity = QUOT;
+                    break;
+                default:
+                    continue;
+            }
+            writeChars(argText, runStart, i);
+            writeBytes(entity);
+            runStart = i + 1;
+        }
+        writeChars(argText, runStart, argEnd);
+    }
+    
+    /**
+     * Кодирует символы в UTF-8 без экранирования.
+     */
+    private void writeChars(char[] argText, int argStart, int argEnd) throws IOException {
+        int i = argStart;
+        if (pendingHighSurrogate != 0 && i < argEnd) {
+            char low = argText[i];
+            if (Character.isLowSurrogate(low)) {
+                writeCodePoint(Character.toCodePoint(pendingHighSurrogate, low));
+                i++;
+            } else {
+                writeCodePoint(pendingHighSurrogate);
+            }
+            pendingHighSurrogate = 0;
+        }
+        while (i < argEnd) {
+            // Не меньше 4 байт на символ, чтобы внутренний цикл не проверял место в буфере.
+            if (count > BUFFER_SIZE - 4) {
+                drain();
+            }
+            int limit = Math.min(argEnd, i + (BUFFER_SIZE - count) / 4);
+            while (i < limit) {
+                char c = argText[i];
+                if (c < 0x80) {
+                    buffer[count++] = (byte) c;
+                    i++;
+                } else if (Character.isHighSurrogate(c)) {
+                    if (i + 1 == argEnd) {
+                        // Пара может быть разрезана между двумя порциями текста.
+                        pendingHighSurrogate = c;
+                        i++;
+                    } else if (Character.isLowSurrogate(argText[i + 1])) {
+                        encode(Character.toCodePoint(c, argText[i + 1]));
+                        i += 2;
+                    } else {
+                        encode(c);
+                        i++;
+                    }
+                } else {
+                    encode(c);
+                    i++;
+                }
+            }
+        }
+    }
+    
+    private void writeCodePoint(int argCodePoint) throws IOException {
+        if (count > BUFFER_SIZE - 4) {
+            drain();
+        }
+        encode(argCodePoint);
+    }
+    
+    private void encode(int argCodePoint) {
+        if (argCodePoint < 0x80) {
+            buffer[count++] = (byte) argCodePoint;
+        } else if (argCodePoint < 0x800) {
+            buffer[count++] = (byte) (0xC0 | (argCodePoint >> 6));
+            buffer[count++] = (byte) (0x80 | (argCodePoint & 0x3F));
+        } else if (argCodePoint < 0x10000) {
+            buffer[count++] = (byte) (0xE0 | (argCodePoint >> 12));
+            buffer[count++] = (byte) (0x80 | ((argCodePoint >> 6) & 0x3F));
+            buffer[count++] = (byte) (0x80 | (argCodePoint & 0x3F));
+        } else {
+            buffer[count++] = (byte) (0xF0 | (argCodePoint >> 18));
+            buffer[count++] = (byte) (0x80 | ((argCodePoint >> 12) & 0x3F));
+            buffer[count++] = (byte) (0x80 | ((argCodePoint >> 6) & 0x3F));
+            buffer[count++] = (byte) (0x80 | (argCodePoint & 0x3F));
+        }
+    }
+    
+    private void writeByte(char argAscii) throws IOException {
+        if (count == BUFFER_SIZE) {
+            drain();
+        }
+        buffer[count++] = (byte) argAscii;
+    }
+    
+    private void writeBytes(byte[] argBytes) throws IOException {
+        if (count > BUFFER_SIZE - argBytes.length) {
+            drain();
+        }
+        System.arraycopy(argBytes, 0, buffer, count, argBytes.length);
+        count += argBytes.length;
+    }
+    
+    private void drain() throws IOException {
+        out.write(buffer, 0, count);
+        count = 0;
+    }
+    
+    
+    private static byte[] ascii(String argText) {
+        byte[] result = new byte[argText.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) argText.charAt(i);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,190 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.xml.security.transforms.TransformationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Реализация алгоритма "urn://smev-gov-ru/xmldsig/transform" на курсорном StAX API
+ * (XMLStreamReader) с записью результата напрямую в UTF-8 через {@link SmevCanonicalWriter}.
+ *
+ * В отличие от событийной реализации в {@link SmevTransformSpi} не создаёт объект на каждый узел
+ * документа: события reader'а передаются в {@link SmevTransformHandler}, который складывает
+ * атрибуты и объявления префиксов в переиспользуемые массивы. Результат побайтно совпадает
+ * с результатом событийной реализации на StAX из состава JDK.
+ *
+ * Трансформацию можно выполнить целиком методом {@link #process(InputStream, OutputStream)} или
+ * пошагово: {@link #open(InputStream, OutputStream)}, {@link #next()} до возврата false,
+ * {@link #close()}.
+ *
+ * Экземпляр не потокобезопасен. После {@link #reset()} его можно использовать для следующей
+ * трансформации.
+ */
+final class SmevCursorTransformer {
+    
+    private static final String ENCODING_UTF_8 = "UTF-8";
+    
+    private static Logger logger = LoggerFactory.getLogger(SmevCursorTransformer.class);
+    
+    private final XMLInputFactory inputFactory;
+    private final SmevTransformHandler handler = new SmevTransformHandler();
+    
+    private XMLStreamReader src;
+    
+    SmevCursorTransformer(XMLInputFactory argInputFactory) {
+        inputFactory = argInputFactory;
+    }
+    
+    /**
+     * Задаёт счётчики, которые заполняются по ходу трансформации.
+     */
+    void setStats(SmevTransformStats argStats) {
+        handler.setStats(argStats);
+    }
+    
+    /**
+     * Задаёт планы для следующей трансформации, см. {@link SmevTransformHandler#setPlans}.
+     */
+    void setPlans(SmevTransformPlans argPlans) {
+        handler.setPlans(argPlans);
+    }
+    
+    /**
+     * Готовит экземпляр к следующей трансформации и освобождает ссылки на данные предыдущей.
+     */
+    void reset() {
+        close();
+        handler.reset();
+    }
+    
+    void process(InputStream argSrc, OutputStream argDst) throws TransformationException {
+        open(argSrc, argDst);
+        try {
+            while (next()) {
+                // Документ обрабатывается по одному событию за шаг.
+            }
+        } finally {
+            close();
+        }
+    }
+    
+    /**
+     * Начинает пошаговую трансформацию argSrc в argDst.
+     */
+    void open(InputStream argSrc, OutputStream argDst) throws TransformationException {
+        try {
+            src = inputFactory.createXMLStreamReader(argSrc, ENCODING_UTF_8);
+            handler.open(argDst);
+        } catch (XMLStreamException e) {
+            close();
+            throw transformationException(e);
+        }
+    }
+    
+    /**
+     * Обрабатывает очередное событие входного документа.
+     * 
+     * @return false, если документ прочитан до конца
+     */
+    boolean next() throws TransformationException {
+        try {
+            if (!src.hasNext()) {
+                return false;
+            }
+            int eventType = src.next();
+            switch (eventType) {
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                case XMLStreamConstants.CDATA:
+                    writeCharacters(eventType, src);
+                    break;
+                case XMLStreamConstants.START_ELEMENT:
+                    writeStartElement(src);
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    handler.endElement(src.getNamespaceURI(), src.getLocalName());
+                    break;
+                default:
+                    // Остальные события (processing instructions, comments, etc.)
+                    // нас не интересуют.
+            }
+            return true;
+        } catch (XMLStreamException e) {
+            throw transformationException(e);
+        } catch (IOException e) {
+            throw transformationException(e);
+        }
+    }
+    
+    /**
+     * Завершает трансформацию: закрывает reader и сбрасывает вывод в выходной поток.
+     * Сами входной и выходной потоки не закрываются.
+     */
+    void close() {
+        if (src != null) {
+            try {
+                src.close();
+            } catch (XMLStreamException e) {
+                logger.warn("Can not close XMLStreamReader", e);
+            }
+            src = null;
+        }
+        try {
+            handler.close();
+        } catch (IOException e) {
+            logger.warn("Can not flush transformation result", e);
+        }
+    }
+    
+    private void writeCharacters(int argEventType, XMLStreamReader argSrc) throws IOException {
+        char[] text = argSrc.getTextCharacters();
+        int start = argSrc.getTextStart();
+        int length = argSrc.getTextLength();
+        // Отсекаем возвраты каретки и пробельные строки. Проверка эквивалентна
+        // data.trim().isEmpty(), но не создаёт строк.
+        if (isWhitespace(text, start, length)) {
+            handler.getStats().whitespaceDropped();
+            return;
+        }
+        if (argEventType == XMLStreamConstants.CDATA) {
+            handler.cdata(text, start, length);
+        } else {
+            handler.characters(text, start, length);
+        }
+    }
+    
+    private void writeStartElement(XMLStreamReader argSrc) throws IOException {
+        handler.startElement(argSrc.getNamespaceURI(), argSrc.getLocalName());
+        for (int i = 0, count = argSrc.getAttributeCount(); i < count; i++) {
+            handler.attribute(argSrc.getAttributeNamespace(i), argSrc.getAttributeLocalName(i),
+                    argSrc.getAttributeValue(i));
+        }
+        handler.endStartElement();
+    }
+    
+    private static TransformationException transformationException(Exception e) {
+        Object exArgs[] = {e.getMessage()};
+        return new TransformationException(
+                "Can not perform transformation " + SmevTransformSpi.ALGORITHM_URN, exArgs, e);
+    }
+    
+    /**
+     * Содержит ли текст только пробельные символы в смысле String.trim().
+     */
+    static boolean isWhitespace(char[] argText, int argStart, int argLength) {
+        for (int i = argStart, end = argStart + argLength; i < end; i++) {
+            if (argText[i] > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
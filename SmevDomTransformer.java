@@ -0,0 +1,384 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+
+import org.apache.xml.security.transforms.TransformationException;
+import org.w3c.dom.Attr;
+import org.w3c.dom.CharacterData;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Трансформация "urn://smev-gov-ru/xmldsig/transform" поддерева DOM без сериализации.
+ *
+ * Santuario передаёт трансформации элемент (XMLSignatureInput.isElement()), а
+ * getOctetStream() канонизирует его (inclusive c14n без комментариев) в байты, которые
+ * трансформация тут же разбирает обратно. Здесь узлы поддерева передаются в
+ * {@link SmevTransformHandler} напрямую, а результат совпадает с тем, что дала бы канонизация и
+ * разбор:
+ * <ul>
+ * <li>атрибуты передаются в порядке канонизации, объявления namespace пропускаются;</li>
+ * <li>вершина поддерева получает атрибуты xml:* предков, как в inclusive c14n;</li>
+ * <li>текст проходит через {@link SmevTextSplitFilter}; комментарии и исключённый узел
+ * (enveloped signature) не разрывают текст, processing instructions - разрывают;</li>
+ * <li>CDATA записывается как текст, ссылки на сущности раскрываются.</li>
+ * </ul>
+ *
+ * Результат трансформации некоторых текстовых узлов зависит от того, как парсер нарежет текст
+ * канонической формы, и без разбора его не получить. Поэтому поддерево передаётся сюда, только
+ * если {@link #isSplitFree(Node, Node)}; остальные поддеревья канонизируются, как в Santuario.
+ *
+ * Экземпляр не потокобезопасен. После {@link #reset()} его можно использовать для следующей
+ * трансформации.
+ */
+final class SmevDomTransformer {
+    
+    private static final int TEXT_CHUNK = 4096;
+    
+    private final SmevTransformHandler handler = new SmevTransformHandler();
+    private final SmevTextSplitFilter text = new SmevTextSplitFilter() {
+        
+        @Override
+        protected void write(char[] argText, int argStart, int argLength) throws IOException {
+            handler.characters(argText, argStart, argLength);
+        }
+    };
+    private final List<Attr> attributes = new ArrayList<Attr>();
+    private final char[] chunk = new char[TEXT_CHUNK];
+    
+    /**
+     * Задаёт счётчики, которые заполняются по ходу трансформации.
+     */
+    void setStats(SmevTransformStats argStats) {
+        handler.setStats(argStats);
+    }
+    
+    /**
+     * Задаёт планы для следующей трансформации (null - без планов).
+     */
+    void setPlans(SmevTransformPlans argPlans) {
+        handler.setPlans(argPlans);
+    }
+    
+    /**
+     * Готовит экземпляр к следующей трансформации и освобождает ссылки на данные предыдущей.
+     */
+    void reset() {
+        handler.reset();
+        text.reset();
+        attributes.clear();
+    }
+    
+    /**
+     * Не зависит ли результат трансформации текста поддерева от нарезки текста его
+     * канонической формы парсером (см. {@link SmevTextSplitFilter}). Узлы только читаются,
+     * ничего не сериализуется.
+     *
+     * @param argNode элемент или документ
+     * @param argExcludeNode поддерево, которое не попадает в результат, или null
+     */
+    static boolean isSplitFree(Node argNode, Node argExcludeNode) {
+        Node root = apex(argNode);
+        if (root == null) {
+            return true;
+        }
+        SmevTextSplitFilter check = new SmevTextSplitFilter() {
+            
+            @Override
+            protected void write(char[] argText, int argStart, int argLength) {
+                // Нужен только вердикт.
+            }
+        };
+        char[] buffer = new char[TEXT_CHUNK];
+        try {
+            Node node = root;
+            while (true) {
+                boolean descend = false;
+                if (node != argExcludeNode) {
+                    switch (node.getNodeType()) {
+                        case Node.ELEMENT_NODE:
+                        case Node.PROCESSING_INSTRUCTION_NODE:
+                            if (!check.endText()) {
+                                return false;
+                            }
+                            descend = node.getNodeType() == Node.ELEMENT_NODE;
+                            break;
+                        case Node.ENTITY_REFERENCE_NODE:
+                            descend = true;
+                            break;
+                        case Node.TEXT_NODE:
+                        case Node.CDATA_SECTION_NODE:
+                            if (!characters(check, ((CharacterData) node).getData(), buffer)) {
+                                return false;
+                            }
+                            break;
+                        default:
+                            // Комментарии канонизация удаляет.
+                    }
+                }
+                Node child = descend ? node.getFirstChild() : null;
+                if (child != null) {
+                    node = child;
+                    continue;
+                }
+                while (true) {
+                    if (node != argExcludeNode && node.getNodeType() == Node.ELEMENT_NODE
+                            && !check.endText()) {
+                        return false;
+                    }
+                    if (node == root) {
+                        return true;
+                    }
+                    Node next = node.getNextSibling();
+                    if (next != null) {
+                        node = next;
+                        break;
+                    }
+                    node = node.getParentNode();
+                }
+            }
+        } catch (IOException e) {
+            // Проверка ничего не пишет.
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Трансформирует поддерево, для которого {@link #isSplitFree(Node, Node)}.
+     *
+     * @param argNode элемент или документ
+     * @param argExcludeNode поддерево, которое не попадает в результат, или null
+     */
+    void process(Node argNode, Node argExcludeNode, OutputStream argDst)
+            throws TransformationException {
+        Node root = apex(argNode);
+        handler.open(argDst);
+        try {
+            if (root != null) {
+                walk(root, argExcludeNode);
+            }
+            handler.close();
+        } catch (IOException e) {
+            Object exArgs[] = {e.getMessage()};
+            throw new TransformationException(
+                    "Can not perform transformation " + SmevTransformSpi.ALGORITHM_URN, exArgs, e);
+        }
+    }
+    
+    /**
+     * Обход поддерева в порядке документа без рекурсии: глубина DOM не ограничена стеком.
+     */
+    private void walk(Node argRoot, Node argExcludeNode)
+            throws IOException, TransformationException {
+        Node node = argRoot;
+        while (true) {
+            Node child = enter(node, node == argRoot, argExcludeNode) ? node.getFirstChild() : null;
+            if (child != null) {
+                node = child;
+                continue;
+            }
+            while (true) {
+                leave(node, argExcludeNode);
+                if (node == argRoot) {
+                    return;
+                }
+                Node next = node.getNextSibling();
+                if (next != null) {
+                    node = next;
+                    break;
+                }
+                node = node.getParentNode();
+            }
+        }
+    }
+    
+    /**
+     * @return нужно ли обходить дочерние узлы
+     */
+    private boolean enter(Node argNode, boolean argApex, Node argExcludeNode)
+            throws IOException, TransformationException {
+        if (argNode == argExcludeNode) {
+            return false;
+        }
+        switch (argNode.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                startElement((Element) argNode, argApex);
+                return true;
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+                if (!characters(text, ((CharacterData) argNode).getData(), chunk)) {
+                    throw splitDependent();
+                }
+                return false;
+            case Node.ENTITY_REFERENCE_NODE:
+                return true;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                endText();
+                return false;
+            default:
+                // Комментарии канонизация удаляет.
+                return false;
+        }
+    }
+    
+    private void leave(Node argNode, Node argExcludeNode)
+            throws IOException, TransformationException {
+        if (argNode != argExcludeNode && argNode.getNodeType() == Node.ELEMENT_NODE) {
+            endText();
+            handler.endElement(argNode.getNamespaceURI(), localName(argNode));
+        }
+    }
+    
+    private void startElement(Element argElement, boolean argApex)
+            throws IOException, TransformationException {
+        endText();
+        attributes.clear();
+        NamedNodeMap attrs = argElement.getAttributes();
+        for (int i = 0, count = attrs.getLength(); i < count; i++) {
+            Attr attribute = (Attr) attrs.item(i);
+            if (!XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI())) {
+                attributes.add(attribute);
+            }
+        }
+        if (argApex) {
+            inheritXmlAttributes(argElement);
+        }
+        sortAttributes();
+        
+        handler.startElement(argElement.getNamespaceURI(), localName(argElement));
+        for (int i = 0; i < attributes.size(); i++) {
+            Attr attribute = attributes.get(i);
+            handler.attribute(attribute.getNamespaceURI(), localName(attribute),
+                    attribute.getValue());
+        }
+        handler.endStartElement();
+        attributes.clear();
+    }
+    
+    private void endText() throws TransformationException {
+        if (!text.endText()) {
+            throw splitDependent();
+        }
+    }
+    
+    /**
+     * Поддерево изменилось после {@link #isSplitFree(Node, Node)} или передано без проверки.
+     */
+    private static TransformationException splitDependent() {
+        return new TransformationException("Text of the subtree depends on parser splits");
+    }
+    
+    /**
+     * Inclusive c14n переносит на вершину поддерева атрибуты xml:* предков. Собственный атрибут
+     * элемента имеет приоритет, а из атрибутов предков Santuario (XmlAttrStack) берёт атрибут
+     * самого дальнего от элемента предка, а не ближайшего - повторяем это.
+     */
+    private void inheritXmlAttributes(Element argElement) {
+        Node outermost = argElement;
+        while (outermost.getParentNode() != null
+                && outermost.getParentNode().getNodeType() == Node.ELEMENT_NODE) {
+            outermost = outermost.getParentNode();
+        }
+        for (Node parent = outermost; parent != argElement; parent = nextAncestor(parent,
+                argElement)) {
+            NamedNodeMap attrs = parent.getAttributes();
+            for (int i = 0, count = attrs.getLength(); i < count; i++) {
+                Attr attribute = (Attr) attrs.item(i);
+                if (XMLConstants.XML_NS_URI.equals(attribute.getNamespaceURI())
+                        && !containsAttribute(XMLConstants.XML_NS_URI, localName(attribute))) {
+                    attributes.add(attribute);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Следующий после argAncestor предок argElement в направлении от корня.
+     */
+    private static Node nextAncestor(Node argAncestor, Element argElement) {
+        Node node = argElement;
+        while (node.getParentNode() != argAncestor) {
+            node = node.getParentNode();
+        }
+        return node;
+    }
+    
+    private boolean containsAttribute(String argNamespaceURI, String argLocalName) {
+        for (int i = 0; i < attributes.size(); i++) {
+            Attr attribute = attributes.get(i);
+            if (argNamespaceURI.equals(attribute.getNamespaceURI())
+                    && argLocalName.equals(localName(attribute))) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Порядок атрибутов в результате канонизации: без namespace - первыми, затем по namespace URI
+     * и локальному имени. От него зависит результат трансформации СМЭВ.
+     */
+    private void sortAttributes() {
+        for (int i = 1; i < attributes.size(); i++) {
+            Attr attribute = attributes.get(i);
+            int j = i - 1;
+            while (j >= 0 && compareAttributes(attributes.get(j), attribute) > 0) {
+                attributes.set(j + 1, attributes.get(j));
+                j--;
+            }
+            attributes.set(j + 1, attribute);
+        }
+    }
+    
+    private static int compareAttributes(Attr argX, Attr argY) {
+        int result = nonNull(argX.getNamespaceURI()).compareTo(nonNull(argY.getNamespaceURI()));
+        if (result != 0) {
+            return result;
+        }
+        return localName(argX).compareTo(localName(argY));
+    }
+    
+    /**
+     * Передаёт текст узла фильтру порциями размера буфера.
+     *
+     * @return false, если фильтр отверг текст
+     */
+    private static boolean characters(SmevTextSplitFilter argFilter, String argData,
+            char[] argBuffer) throws IOException {
+        int length = argData.length();
+        for (int start = 0; start < length; start += argBuffer.length) {
+            int end = Math.min(length, start + argBuffer.length);
+            argData.getChars(start, end, argBuffer, 0);
+            if (!argFilter.characters(argBuffer, 0, end - start)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Элемент, с которого начинается результат: для документа - корневой элемент.
+     */
+    private static Node apex(Node argNode) {
+        if (argNode.getNodeType() == Node.DOCUMENT_NODE) {
+            return ((Document) argNode).getDocumentElement();
+        }
+        return argNode;
+    }
+    
+    private static String localName(Node argNode) {
+        String localName = argNode.getLocalName();
+        return localName != null ? localName : argNode.getNodeName();
+    }
+    
+    private static String nonNull(String argNamespaceURI) {
+        return argNamespaceURI == null ? XMLConstants.NULL_NS_URI : argNamespaceURI;
+    }
+}
@@ -0,0 +1,188 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Таблица prefix mappings трансформации "urn://smev-gov-ru/xmldsig/transform" с областями
+ * видимости по элементам.
+ *
+ * Заменяет стек списков Namespace с линейным поиском: поиск префикса по namespace URI выполняется
+ * за O(1) по хэш-индексу, закрытие области видимости элемента снимает его mappings с вершины стека
+ * без поиска. Префиксы нумеруются так же, как раньше: ns1, ns2, ... в порядке объявления,
+ * счётчик не уменьшается при закрытии области видимости. Строки префиксов кэшируются.
+ *
+ * Экземпляр не потокобезопасен.
+ */
+final class SmevNamespaceTable {
+    
+    private static final String NS_PREFIX = "ns";
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MAX_CACHED_PREFIXES = 1 << 16;
+    
+    // Общий для всех таблиц кэш строк "nsN", индекс - номер префикса. Массив только растёт:
+    // расширенная копия публикуется через compareAndSet поверх той, из которой она сделана.
+    private static final AtomicReference<String[]> prefixCache =
+            new AtomicReference<String[]>(growPrefixCache(new String[0], 256));
+            
+    // Mappings в порядке объявления. Внутри корзины хэш-индекса записи связаны через next
+    // от последней объявленной к первой, поэтому запись с вершины стека всегда голова корзины.
+    private String[] uris = new String[INITIAL_CAPACITY];
+    private String[] prefixes = new String[INITIAL_CAPACITY];
+    private int[] next = new int[INITIAL_CAPACITY];
+    private int[] buckets = newBuckets(INITIAL_CAPACITY * 2);
+    private int count;
+    
+    private int[] scopeStarts = new int[INITIAL_CAPACITY];
+    private int depth;
+    private int prefixCnt = 1;
+    
+    /**
+     * Открывает область видимости очередного элемента.
+     */
+    void pushScope() {
+        if (depth == scopeStarts.length) {
+            scopeStarts = Arrays.copyOf(scopeStarts, depth * 2);
+        }
+        scopeStarts[depth++] = count;
+    }
+    
+    /**
+     * Закрывает область видимости текущего элемента, удаляя объявленные в ней mappings.
+     */
+    void popScope() {
+        int start = scopeStarts[--depth];
+        while (count > start) {
+            count--;
+            buckets[bucketOf(uris[count])] = next[count];
+            uris[count] = null;
+            prefixes[count] = null;
+        }
+    }
+    
+    /**
+     * Возвращает префикс, назначенный namespace URI в одной из открытых областей видимости,
+     * или null.
+     */
+    String findPrefix(String argNamespaceURI) {
+        if (argNamespaceURI == null) {
+            throw new IllegalArgumentException("No namespace элементы не поддерживаются.");
+        }
+        int i = buckets[bucketOf(argNamespaceURI)];
+        while (i >= 0) {
+            if (argNamespaceURI.equals(uris[i])) {
+                return prefixes[i];
+            }
+            i = next[i];
+        }
+        return null;
+    }
+    
+    /**
+     * Назначает namespace URI очередной префикс nsN в текущей области видимости.
+     */
+    String declarePrefix(String argNamespaceURI) {
+        if (count == uris.length) {
+            grow();
+        }
+        String prefix = prefix(prefixCnt++);
+        int bucket = bucketOf(argNamespaceURI);
+        uris[count] = argNamespaceURI;
+        prefixes[count] = prefix;
+        next[count] = buckets[bucket];
+        buckets[bucket] = count;
+        count++;
+        return prefix;
+    }
+    
+    /**
+     * Индекс первого mapping текущей области видимости.
+     */
+    int scopeStart() {
+        return depth == 0 ? 0 : scopeStarts[depth - 1];
+    }
+    
+    /**
+     * Количество mappings во всех открытых областях видимости.
+     */
+    int size() {
+        return count;
+    }
+    
+    /**
+     * Количество префиксов nsN, объявленных с начала документа.
+     */
+    int declaredCount() {
+        return prefixCnt - 1;
+    }
+    
+    String getURI(int argIndex) {
+        return uris[argIndex];
+    }
+    
+    String getPrefix(int argIndex) {
+        return prefixes[argIndex];
+    }
+    
+    /**
+     * Сбрасывает таблицу в исходное состояние, в том числе нумерацию префиксов.
+     */
+    void reset() {
+        Arrays.fill(uris, 0, count, null);
+        Arrays.fill(prefixes, 0, count, null);
+        Arrays.fill(buckets, -1);
+        count = 0;
+        depth = 0;
+        prefixCnt = 1;
+    }
+    
+    private void grow() {
+        int capacity = uris.length * 2;
+        uris = Arrays.copyOf(uris, capacity);
+        prefixes = Arrays.copyOf(prefixes, capacity);
+        next = Arrays.copyOf(next, capacity);
+        buckets = newBuckets(capacity * 2);
+        for (int i = 0; i < count; i++) {
+            int bucket = bucketOf(uris[i]);
+            next[i] = buckets[bucket];
+            buckets[bucket] = i;
+        }
+    }
+    
+    private int bucketOf(String argNamespaceURI) {
+        int h = argNamespaceURI.hashCode();
+        return (h ^ (h >>> 16)) & (buckets.length - 1);
+    }
+    
+    private static int[] newBuckets(int argSize) {
+        int[] result = new int[argSize];
+        Arrays.fill(result, -1);
+        return result;
+    }
+    
+    private static String prefix(int argNumber) {
+        if (argNumber >= MAX_CACHED_PREFIXES) {
+            return NS_PREFIX + String.valueOf(argNumber);
+        }
+        while (true) {
+            String[] cache = prefixCache.get();
+            if (argNumber < cache.length) {
+                return cache[argNumber];
+            }
+            String[] grown = growPrefixCache(cache, Math.min(MAX_CACHED_PREFIXES,
+                    Math.max(argNumber + 1, cache.length * 2)));
+            // Другой поток успел заменить массив: повторяем с его копией, она тоже не короче.
+            if (prefixCache.compareAndSet(cache, grown)) {
+                return grown[argNumber];
+            }
+        }
+    }
+    
+    private static String[] growPrefixCache(String[] argCache, int argSize) {
+        String[] result = Arrays.copyOf(argCache, argSize);
+        for (int i = argCache.length; i < argSize; i++) {
+            result[i] = NS_PREFIX + String.valueOf(i);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,828 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.xml.security.transforms.TransformationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Дайджесты нескольких подписываемых фрагментов конверта СМЭВ за один разбор конверта.
+ *
+ * Для каждой ссылки вида URI="#id" с трансформациями exc-c14n и
+ * "urn://smev-gov-ru/xmldsig/transform" Santuario строит DOM конверта, находит фрагмент,
+ * канонизирует его и разбирает результат канонизации ещё раз. Здесь конверт читается StAX один
+ * раз, без DOM: события элементов с запрошенными Id (в том числе вложенных друг в друга,
+ * например SIGNED_BY_CONSUMER и PERSONAL_SIGNATURE) сразу передаются каждому фрагменту в свой
+ * {@link SmevTransformHandler}, а его результат - в дайджест. Атрибуты передаются в порядке
+ * канонизации, текст - с удалёнными комментариями, как его увидел бы разбор канонической формы.
+ *
+ * Трансформация отбрасывает пробельные текстовые события, а то, как парсер нарежет текст
+ * канонической формы на события, зависит от сущностей, ']', переводов строк и границ его
+ * буфера. Текстовые узлы, результат которых от нарезки не зависит (см.
+ * {@link SmevTextSplitFilter}), передаются по ходу разбора. Встретив другой узел, фрагмент
+ * прекращает прямую обработку, его частичный результат отбрасывается, и после основного разбора
+ * такие фрагменты обрабатываются, как в Santuario: конверт читается ещё раз, фрагмент
+ * канонизируется в буфер, и буфер трансформируется {@link SmevTransformSpi}. Для повторного
+ * чтения входной поток должен поддерживать mark/reset (например, ByteArrayInputStream), иначе
+ * прочитанный конверт копируется так же, как результат трансформации: в heap до порога
+ * {@link SmevTransformConfig#getSpillThreshold()}, дальше во временный файл.
+ *
+ * Идентификатор ищется в атрибуте без namespace (по умолчанию "Id"). Если элементов с одним Id
+ * несколько, используется первый. Экземпляр потокобезопасен.
+ */
+public class SmevReferenceDigester {
+    
+    public static final String DEFAULT_ID_ATTRIBUTE = "Id";
+    
+    private static final String ENCODING_UTF_8 = "UTF-8";
+    
+    private static Logger logger = LoggerFactory.getLogger(SmevReferenceDigester.class);
+    
+    private final String idAttribute;
+    
+    public SmevReferenceDigester() {
+        this(DEFAULT_ID_ATTRIBUTE);
+    }
+    
+    /**
+     * @param argIdAttribute локальное имя атрибута-идентификатора без namespace
+     */
+    public SmevReferenceDigester(String argIdAttribute) {
+        if (argIdAttribute == null) {
+            throw new IllegalArgumentException("Id attribute must not be null");
+        }
+        idAttribute = argIdAttribute;
+    }
+    
+    /**
+     * Вычисляет дайджесты фрагментов argIds конверта argEnvelope. Результат трансформации
+     * передаётся в дайджест по ходу разбора и в памяти не накапливается. Входной поток
+     * закрывается.
+     *
+     * @param argDigestAlgorithm имя алгоритма для MessageDigest.getInstance, например "GOST3411"
+     * @return дайджесты в порядке argIds
+     * @throws TransformationException если конверт не разобран или какой-то Id не найден
+     */
+    public Map<String, byte[]> digest(InputStream argEnvelope, Collection<String> argIds,
+            String argDigestAlgorithm) throws TransformationException, NoSuchAlgorithmException {
+        Map<String, Target> targets = new LinkedHashMap<String, Target>();
+        for (String id : argIds) {
+            targets.put(id, new Target(MessageDigest.getInstance(argDigestAlgorithm)));
+        }
+        run(argEnvelope, targets);
+        Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+        for (Map.Entry<String, Target> entry : targets.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().digest.digest());
+        }
+        return result;
+    }
+    
+    /**
+     * Записывает результат exc-c14n и трансформации СМЭВ каждого фрагмента в его поток.
+     * Результат фрагмента передаётся в поток целиком, когда фрагмент закончился: до этого
+     * момента неизвестно, не придётся ли его отбросить. Потоки не закрываются. Входной поток
+     * закрывается.
+     *
+     * @param argOutputs выходной поток для каждого Id
+     * @throws TransformationException если конверт не разобран или какой-то Id не найден
+     */
+    public void transform(InputStream argEnvelope, Map<String, ? extends OutputStream> argOutputs)
+            throws TransformationException {
+        Map<String, Target> targets = new LinkedHashMap<String, Target>();
+        for (Map.Entry<String, ? extends OutputStream> entry : argOutputs.entrySet()) {
+            targets.put(entry.getKey(), new Target(entry.getValue()));
+        }
+        run(argEnvelope, targets);
+    }
+    
+    private void run(InputStream argEnvelope, Map<String, Target> argTargets)
+            throws TransformationException {
+        SmevSpillOutputStream copy = null;
+        try {
+            InputStream envelope = argEnvelope;
+            if (argEnvelope.markSupported()) {
+                argEnvelope.mark(Integer.MAX_VALUE);
+            } else {
+                SmevTransformConfig config = SmevTransformSpi.getConfig();
+                copy = new SmevSpillOutputStream(config.getSpillThreshold(),
+                        config.getSpillDirectory());
+                envelope = new CopyingInputStream(argEnvelope, copy);
+            }
+            Pass pass = new Pass(argTargets, true);
+            parse(envelope, pass);
+            if (pass.abandoned.isEmpty()) {
+                checkCompleted(argTargets, pass.completed);
+                return;
+            }
+            
+            // Фрагменты, результат которых зависит от нарезки текста: как в Santuario.
+            Map<String, Target> abandoned = new LinkedHashMap<String, Target>();
+            for (String id : pass.abandoned) {
+                abandoned.put(id, argTargets.get(id));
+            }
+            InputStream again;
+            if (copy == null) {
+                argEnvelope.reset();
+                again = argEnvelope;
+            } else {
+                // Основной разбор мог остановиться раньше конца отброшенного фрагмента.
+                byte[] buffer = new byte[8192];
+                while (envelope.read(buffer) != -1) {
+                    // Дочитываем конверт в копию.
+                }
+                again = copy.getInputStream();
+            }
+            try {
+                Pass fallback = new Pass(abandoned, false);
+                parse(again, fallback);
+                checkCompleted(abandoned, fallback.completed);
+            } finally {
+                if (again != argEnvelope) {
+                    again.close();
+                }
+            }
+            checkCompleted(argTargets, pass.completed);
+        } catch (IOException e) {
+            throw transformationException(e);
+        } finally {
+            if (copy != null) {
+                copy.discard();
+            }
+            try {
+                argEnvelope.close();
+            } catch (IOException e) {
+                logger.warn("Can not close input stream.", e);
+            }
+        }
+    }
+    
+    private void parse(InputStream argEnvelope, Pass argPass) throws TransformationException {
+        SmevTransformContext context = SmevTransformSpi.acquireContext();
+        XMLStreamReader src = null;
+        try {
+            src = context.getInputFactory().createXMLStreamReader(argEnvelope, ENCODING_UTF_8);
+            while (argPass.remaining > 0 && src.hasNext()) {
+                argPass.next(src);
+            }
+        } catch (XMLStreamException e) {
+            throw transformationException(e);
+        } catch (IOException e) {
+            throw transformationException(e);
+        } finally {
+            if (src != null) {
+                try {
+                    src.close();
+                } catch (XMLStreamException e) {
+                    logger.warn("Can not close XMLStreamReader", e);
+                }
+            }
+            context.release();
+        }
+    }
+    
+    private void checkCompleted(Map<String, Target> argTargets, List<String> argCompleted)
+            throws TransformationException {
+        if (argCompleted.size() == argTargets.size()) {
+            return;
+        }
+        List<String> missing = new ArrayList<String>();
+        for (String id : argTargets.keySet()) {
+            if (!argCompleted.contains(id)) {
+                missing.add(id);
+            }
+        }
+        throw new TransformationException("Elements with " + idAttribute + " " + missing
+                + " are not found");
+    }
+    
+    private static TransformationException transformationException(Exception e) {
+        Object exArgs[] = {e.getMessage()};
+        return new TransformationException(
+                "Can not perform transformation " + SmevTransformSpi.ALGORITHM_URN, exArgs, e);
+    }
+    
+    /**
+     * Куда идёт результат фрагмента: в дайджест или в поток вызывающего.
+     */
+    private static class Target {
+        
+        final MessageDigest digest;
+        final OutputStream output;
+        private ByteArrayOutputStream pending;
+        
+        Target(MessageDigest argDigest) {
+            digest = argDigest;
+            output = new SmevTransformSpi.DigestingOutputStream(argDigest);
+        }
+        
+        Target(OutputStream argOutput) {
+            digest = null;
+            output = argOutput;
+        }
+        
+        /**
+         * Поток для прямой обработки фрагмента: дайджест пишется сразу, поток вызывающего -
+         * после {@link #commit()}.
+         */
+        OutputStream open() {
+            if (digest != null) {
+                return output;
+            }
+            pending = new ByteArrayOutputStream();
+            return pending;
+        }
+        
+        void commit() throws IOException {
+            if (pending != null) {
+                pending.writeTo(output);
+                pending = null;
+            }
+        }
+        
+        /**
+         * Отбрасывает частичный результат прямой обработки.
+         */
+        void discard() {
+            if (digest != null) {
+                digest.reset();
+            }
+            pending = null;
+        }
+    }
+    
+    /**
+     * Состояние одного разбора конверта.
+     */
+    private class Pass {
+        
+        private final Map<String, Target> targets;
+        private final boolean direct;
+        private final List<Fragment> active = new ArrayList<Fragment>();
+        private final List<String> completed = new ArrayList<String>();
+        /** Фрагменты, прямая обработка которых прекращена. */
+        private final List<String> abandoned = new ArrayList<String>();
+        private int[] attributeOrder = new int[16];
+        private int remaining;
+        private int depth;
+        
+        private final SmevTextSplitFilter textFilter = new SmevTextSplitFilter() {
+            
+            @Override
+            protected void write(char[] argText, int argStart, int argLength)
+                    throws IOException {
+                writeText(argText, argStart, argLength);
+            }
+        };
+        
+        /**
+         * @param argDirect true - прямая обработка, false - канонизация в буфер и трансформация
+         *        {@link SmevTransformSpi}
+         */
+        Pass(Map<String, Target> argTargets, boolean argDirect) {
+            targets = argTargets;
+            direct = argDirect;
+            remaining = argTargets.size();
+        }
+        
+        void next(XMLStreamReader argSrc)
+                throws XMLStreamException, IOException, TransformationException {
+            switch (argSrc.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    endText();
+                    depth++;
+                    startReference(argSrc);
+                    if (!active.isEmpty()) {
+                        startElement(argSrc);
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    endText();
+                    endElement(argSrc);
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                case XMLStreamConstants.CDATA:
+                    if (!active.isEmpty()) {
+                        text(argSrc.getTextCharacters(), argSrc.getTextStart(),
+                                argSrc.getTextLength());
+                    }
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    endText();
+                    for (int r = 0; r < active.size(); r++) {
+                        active.get(r).processingInstruction(argSrc.getPITarget(),
+                                argSrc.getPIData());
+                    }
+                    break;
+                default:
+                    // Комментарии канонизация удаляет, текст вокруг них - один узел.
+                    // Остальное нас не интересует.
+            }
+        }
+        
+        private void startReference(XMLStreamReader argSrc) {
+            for (int i = 0, count = argSrc.getAttributeCount(); i < count; i++) {
+                String namespaceURI = argSrc.getAttributeNamespace(i);
+                if ((namespaceURI == null || namespaceURI.length() == 0)
+                        && idAttribute.equals(argSrc.getAttributeLocalName(i))) {
+                    String id = argSrc.getAttributeValue(i);
+                    Target target = targets.get(id);
+                    if (target != null && !completed.contains(id) && !isActive(id)) {
+                        active.add(direct ? new DirectFragment(id, depth, target)
+                                : new CanonicalFragment(id, depth, target));
+                    }
+                    return;
+                }
+            }
+        }
+        
+        private boolean isActive(String argId) {
+            for (int i = 0; i < active.size(); i++) {
+                if (active.get(i).id.equals(argId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        private void startElement(XMLStreamReader argSrc) throws IOException {
+            int count = argSrc.getAttributeCount();
+            sortAttributes(argSrc, count);
+            for (int r = 0; r < active.size(); r++) {
+                active.get(r).startElement(argSrc, attributeOrder, count);
+            }
+        }
+        
+        private void endElement(XMLStreamReader argSrc) throws IOException,
+                TransformationException {
+            for (int r = active.size() - 1; r >= 0; r--) {
+                Fragment fragment = active.get(r);
+                fragment.endElement(argSrc);
+                if (fragment.depth == depth) {
+                    active.remove(r);
+                    completed.add(fragment.id);
+                    remaining--;
+                    fragment.finish();
+                }
+            }
+        }
+        
+        /**
+         * Передаёт текст фрагментам. При прямой обработке текст идёт через
+         * {@link SmevTextSplitFilter}.
+         */
+        private void text(char[] argText, int argStart, int argLength) throws IOException {
+            if (!direct) {
+                writeText(argText, argStart, argLength);
+            } else if (!textFilter.characters(argText, argStart, argLength)) {
+                abandonText();
+            }
+        }
+        
+        /**
+         * Конец текстового узла: разметка или конец фрагмента.
+         */
+        private void endText() {
+            if (!textFilter.endText() && !active.isEmpty()) {
+                // Пробельный хвост после содержимого.
+                abandonText();
+            }
+        }
+        
+        private void writeText(char[] argText, int argStart, int argLength) throws IOException {
+            if (argLength == 0) {
+                return;
+            }
+            for (int r = 0; r < active.size(); r++) {
+                active.get(r).characters(argText, argStart, argLength);
+            }
+        }
+        
+        /**
+         * Текущий текстовый узел нельзя обработать прямо: он входит во все активные фрагменты,
+         * их обработка прекращается.
+         */
+        private void abandonText() {
+            for (int r = 0; r < active.size(); r++) {
+                Fragment fragment = active.get(r);
+                fragment.target.discard();
+                abandoned.add(fragment.id);
+                completed.add(fragment.id);
+                remaining--;
+            }
+            active.clear();
+            textFilter.reset();
+        }
+        
+        /**
+         * Порядок атрибутов в результате канонизации: по namespace URI (без namespace - первыми),
+         * затем по локальному имени.
+         */
+        private void sortAttributes(XMLStreamReader argSrc, int argCount) {
+            if (argCount > attributeOrder.length) {
+                attributeOrder = new int[Math.max(argCount, attributeOrder.length * 2)];
+            }
+            for (int i = 0; i < argCount; i++) {
+                int index = i;
+                int j = i - 1;
+                while (j >= 0 && compareAttributes(argSrc, attributeOrder[j], index) > 0) {
+                    attributeOrder[j + 1] = attributeOrder[j];
+                    j--;
+                }
+                attributeOrder[j + 1] = index;
+            }
+        }
+        
+        private int compareAttributes(XMLStreamReader argSrc, int argX, int argY) {
+            int result = nonNull(argSrc.getAttributeNamespace(argX)).compareTo(
+                    nonNull(argSrc.getAttributeNamespace(argY)));
+            if (result != 0) {
+                return result;
+            }
+            return argSrc.getAttributeLocalName(argX).compareTo(
+                    argSrc.getAttributeLocalName(argY));
+        }
+    }
+    
+    private static String nonNull(String argValue) {
+        return argValue == null ? "" : argValue;
+    }
+    
+    /**
+     * Фрагмент конверта, обрабатываемый в данный момент.
+     */
+    private abstract static class Fragment {
+        
+        final String id;
+        final int depth;
+        final Target target;
+        
+        Fragment(String argId, int argDepth, Target argTarget) {
+            id = argId;
+            depth = argDepth;
+            target = argTarget;
+        }
+        
+        /**
+         * @param argAttributeOrder индексы атрибутов в порядке канонизации
+         */
+        abstract void startElement(XMLStreamReader argSrc, int[] argAttributeOrder, int argCount)
+                throws IOException;
+                
+        abstract void endElement(XMLStreamReader argSrc)
+                throws IOException, TransformationException;
+                
+        abstract void characters(char[] argText, int argStart, int argLength) throws IOException;
+        
+        abstract void processingInstruction(String argTarget, String argData)
+                throws IOException;
+                
+        /**
+         * Фрагмент закончился: результат передаётся вызывающему.
+         */
+        abstract void finish() throws IOException, TransformationException;
+    }
+    
+    /**
+     * Фрагмент, события которого сразу передаются трансформации СМЭВ.
+     */
+    private static class DirectFragment extends Fragment {
+        
+        private final SmevTransformHandler handler = new SmevTransformHandler();
+        
+        DirectFragment(String argId, int argDepth, Target argTarget) {
+            super(argId, argDepth, argTarget);
+            handler.setPlans(SmevTransformSpi.activePlans(SmevTransformSpi.getConfig()));
+            handler.open(argTarget.open());
+        }
+        
+        @Override
+        void startElement(XMLStreamReader argSrc, int[] argAttributeOrder, int argCount)
+                throws IOException {
+            handler.startElement(argSrc.getNamespaceURI(), argSrc.getLocalName());
+            for (int i = 0; i < argCount; i++) {
+                int index = argAttributeOrder[i];
+                handler.attribute(argSrc.getAttributeNamespace(index),
+                        argSrc.getAttributeLocalName(index), argSrc.getAttributeValue(index));
+            }
+            handler.endStartElement();
+        }
+        
+        @Override
+        void endElement(XMLStreamReader argSrc) throws IOException, TransformationException {
+            handler.endElement(argSrc.getNamespaceURI(), argSrc.getLocalName());
+        }
+        
+        @Override
+        void characters(char[] argText, int argStart, int argLength) throws IOException {
+            handler.characters(argText, argStart, argLength);
+        }
+        
+        @Override
+        void processingInstruction(String argTarget, String argData) {
+            // Трансформация удаляет processing instructions; текст вокруг них - разные узлы.
+        }
+        
+        @Override
+        void finish() throws IOException {
+            handler.close();
+            target.commit();
+        }
+    }
+    
+    /**
+     * Фрагмент, канонизируемый в буфер (exc-c14n без комментариев), который по окончании
+     * фрагмента трансформируется {@link SmevTransformSpi}, как в Santuario.
+     *
+     * Объявление namespace выводится на элементе, который его видимо использует (префиксом
+     * элемента или префиксом атрибута), если ближайший выведенный предок не объявил тот же
+     * префикс с тем же URI. xmlns="" выводится, только если выведенный предок объявил непустой
+     * namespace по умолчанию.
+     */
+    private static class CanonicalFragment extends Fragment {
+        
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final Writer writer;
+        
+        /**
+         * Выведенные объявления: префикс и URI; для каждого открытого элемента - сколько
+         * объявлений было до него.
+         */
+        private final List<String> renderedPrefixes = new ArrayList<String>();
+        private final List<String> renderedURIs = new ArrayList<String>();
+        private int[] marks = new int[16];
+        private int level;
+        private final List<String> utilizedPrefixes = new ArrayList<String>();
+        private final List<String> utilizedURIs = new ArrayList<String>();
+        
+        CanonicalFragment(String argId, int argDepth, Target argTarget) {
+            super(argId, argDepth, argTarget);
+            try {
+                writer = new OutputStreamWriter(buffer, ENCODING_UTF_8);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        
+        @Override
+        void startElement(XMLStreamReader argSrc, int[] argAttributeOrder, int argCount)
+                throws IOException {
+            if (level == marks.length) {
+                marks = Arrays.copyOf(marks, level * 2);
+            }
+            marks[level++] = renderedPrefixes.size();
+            
+            utilizedPrefixes.clear();
+            utilizedURIs.clear();
+            utilize(argSrc.getPrefix(), argSrc.getNamespaceURI());
+            for (int i = 0; i < argCount; i++) {
+                String prefix = nonNull(argSrc.getAttributePrefix(i));
+                if (prefix.length() > 0 && !XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+                    utilize(prefix, argSrc.getAttributeNamespace(i));
+                }
+            }
+            
+            writer.write('<');
+            writeName(argSrc.getPrefix(), argSrc.getLocalName());
+            for (int i = 0; i < utilizedPrefixes.size(); i++) {
+                String prefix = utilizedPrefixes.get(i);
+                String namespaceURI = utilizedURIs.get(i);
+                if (!namespaceURI.equals(getRendered(prefix))) {
+                    renderedPrefixes.add(prefix);
+                    renderedURIs.add(namespaceURI);
+                    writer.write(prefix.length() == 0 ? " xmlns" : " xmlns:");
+                    writer.write(prefix);
+                    writer.write("=\"");
+                    writeAttributeValue(namespaceURI);
+                    writer.write('"');
+                }
+            }
+            for (int i = 0; i < argCount; i++) {
+                int index = argAttributeOrder[i];
+                writer.write(' ');
+                writeName(argSrc.getAttributePrefix(index), argSrc.getAttributeLocalName(index));
+                writer.write("=\"");
+                writeAttributeValue(argSrc.getAttributeValue(index));
+                writer.write('"');
+            }
+            writer.write('>');
+        }
+        
+        @Override
+        void endElement(XMLStreamReader argSrc) throws IOException {
+            writer.write("</");
+            writeName(argSrc.getPrefix(), argSrc.getLocalName());
+            writer.write('>');
+            int mark = marks[--level];
+            for (int i = renderedPrefixes.size() - 1; i >= mark; i--) {
+                renderedPrefixes.remove(i);
+                renderedURIs.remove(i);
+            }
+        }
+        
+        @Override
+        void characters(char[] argText, int argStart, int argLength) throws IOException {
+            int end = argStart + argLength;
+            int start = argStart;
+            for (int i = argStart; i < end; i++) {
+                String replacement;
+                switch (argText[i]) {
+                    case '&':
+                        replacement = "&amp;";
+                        break;
+                    case '<':
+                        replacement = "&lt;";
+                        break;
+                    case '>':
+                        replacement = "&gt;";
+                        break;
+                    case '\r':
+                        replacement = "&#xD;";
+                        break;
+                    default:
+                        continue;
+                }
+                writer.write(argText, start, i - start);
+                writer.write(replacement);
+                start = i + 1;
+            }
+            writer.write(argText, start, end - start);
+        }
+        
+        @Override
+        void processingInstruction(String argTarget, String argData) throws IOException {
+            writer.write("<?");
+            writer.write(argTarget);
+            if (argData != null && argData.length() > 0) {
+                writer.write(' ');
+                writer.write(argData);
+            }
+            writer.write("?>");
+        }
+        
+        @Override
+        void finish() throws IOException, TransformationException {
+            writer.flush();
+            new SmevTransformSpi().process(new ByteArrayInputStream(buffer.toByteArray()),
+                    new UnclosedOutputStream(target.output));
+        }
+        
+        /**
+         * Добавляет видимо используемое объявление, сохраняя порядок канонизации: namespace по
+         * умолчанию первым, остальные по префиксу.
+         */
+        private void utilize(String argPrefix, String argNamespaceURI) {
+            String prefix = nonNull(argPrefix);
+            int i = 0;
+            while (i < utilizedPrefixes.size() && utilizedPrefixes.get(i).compareTo(prefix) < 0) {
+                i++;
+            }
+            if (i < utilizedPrefixes.size() && utilizedPrefixes.get(i).equals(prefix)) {
+                return;
+            }
+            utilizedPrefixes.add(i, prefix);
+            utilizedURIs.add(i, nonNull(argNamespaceURI));
+        }
+        
+        /**
+         * URI, с которым префикс объявлен ближайшим выведенным предком; для namespace по
+         * умолчанию без объявлений - пустая строка.
+         */
+        private String getRendered(String argPrefix) {
+            for (int i = renderedPrefixes.size() - 1; i >= 0; i--) {
+                if (renderedPrefixes.get(i).equals(argPrefix)) {
+                    return renderedURIs.get(i);
+                }
+            }
+            return argPrefix.length() == 0 ? "" : null;
+        }
+        
+        private void writeName(String argPrefix, String argLocalName) throws IOException {
+            if (argPrefix != null && argPrefix.length() > 0) {
+                writer.write(argPrefix);
+                writer.write(':');
+            }
+            writer.write(argLocalName);
+        }
+        
+        private void writeAttributeValue(String argValue) throws IOException {
+            int length = argValue.length();
+            int start = 0;
+            for (int i = 0; i < length; i++) {
+                String replacement;
+                switch (argValue.charAt(i)) {
+                    case '&':
+                        replacement = "&amp;";
+                        break;
+                    case '<':
+                        replacement = "&lt;";
+                        break;
+                    case '"':
+                        replacement = "&quot;";
+                        break;
+                    case '\t':
+                        replacement = "&#x9;";
+                        break;
+                    case '\n':
+                        replacement = "&#xA;";
+                        break;
+                    case '\r':
+                        replacement = "&#xD;";
+                        break;
+                    default:
+                        continue;
+                }
+                writer.write(argValue, start, i - start);
+                writer.write(replacement);
+                start = i + 1;
+            }
+            writer.write(argValue, start, length - start);
+        }
+    }
+    
+    /**
+     * Поток результата фрагмента: {@link SmevTransformSpi} закрывает выходной поток, а потоки
+     * вызывающего остаются открытыми.
+     */
+    private static class UnclosedOutputStream extends FilterOutputStream {
+        
+        UnclosedOutputStream(OutputStream argOut) {
+            super(argOut);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+        
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+    
+    /**
+     * Входной поток, копирующий прочитанное для повторного разбора.
+     */
+    private static class CopyingInputStream extends FilterInputStream {
+        
+        private final OutputStream copy;
+        
+        CopyingInputStream(InputStream argIn, OutputStream argCopy) {
+            super(argIn);
+            copy = argCopy;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int result = in.read();
+            if (result != -1) {
+                copy.write(result);
+            }
+            return result;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int result = in.read(b, off, len);
+            if (result > 0) {
+                copy.write(b, off, result);
+            }
+            return result;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            throw new IOException("skip is not supported");
+        }
+        
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.Cleaner;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Приёмник результата трансформации с ограниченным расходом heap.
+ *
+ * Пока результат не превышает порог, он накапливается в массиве байт. Как только порог
+ * превышен, накопленное сбрасывается во временный файл, и дальнейший вывод пишется туда.
+ * Результат читается потоком {@link #getInputStream()}: из массива - без копирования, из файла -
+ * через отображение в память окнами по {@link #MAPPING_WINDOW} байт, так что ни на каком этапе
+ * документ целиком в heap не находится.
+ *
+ * Временный файл создаётся {@link Files#createTempFile}, то есть на POSIX-системах доступен только
+ * владельцу процесса: результат трансформации - это подписываемые данные. Файл удаляется, когда
+ * поток результата дочитан до конца или закрыт, а также методом {@link #discard()}, который
+ * вызывающий обязан выполнить в finally, если результат не был получен. Если поток результата
+ * получен, но не дочитан и не закрыт (Santuario этого не гарантирует), файл удаляется
+ * {@link Cleaner}, когда и этот объект, и поток результата становятся недостижимы.
+ *
+ * Экземпляр не потокобезопасен.
+ */
+final class SmevSpillOutputStream extends OutputStream {
+    
+    static final int MAPPING_WINDOW = 64 * 1024 * 1024;
+    
+    private static final int INITIAL_CAPACITY = 8192;
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+    private static final String TEMP_FILE_PREFIX = "smev3-transform";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    
+    private static Logger logger = LoggerFactory.getLogger(SmevSpillOutputStream.class);
+    private static final Cleaner cleaner = Cleaner.create();
+    
+    private final int threshold;
+    private final File directory;
+    
+    private byte[] buffer;
+    private int count;
+    
+    private SpillFile file;
+    // Достижим, пока достижим этот объект или поток результата; после этого файл удаляет Cleaner.
+    private Object fileOwner;
+    private Cleaner.Cleanable fileCleanable;
+    private OutputStream fileStream;
+    private long fileLength;
+    private boolean closed;
+    
+    /**
+     * @param argThreshold сколько байт держать в heap до сброса в файл; 0 - сразу писать в файл
+     * @param argDirectory каталог временных файлов, null - java.io.tmpdir
+     */
+    SmevSpillOutputStream(int argThreshold, File argDirectory) {
+        threshold = Math.max(argThreshold, 0);
+        directory = argDirectory;
+        buffer = new byte[Math.min(threshold, INITIAL_CAPACITY)];
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (fileStream == null && count == threshold) {
+            spill();
+        }
+        if (fileStream != null) {
+            fileStream.write(b);
+            fileLength++;
+            return;
+        }
+        ensureCapacity(count + 1);
+        buffer[count++] = (byte) b;
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (fileStream == null && len > threshold - count) {
+            spill();
+        }
+        if (fileStream != null) {
+            fileStream.write(b, off, len);
+            fileLength += len;
+            return;
+        }
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+    
+    @Override
+    public void flush() throws IOException {
+        if (fileStream != null) {
+            fileStream.flush();
+        }
+    }
+    
+    /**
+     * Завершает запись. Повторный вызов ничего не делает.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (fileStream != null) {
+            OutputStream stream = fileStream;
+            fileStream = null;
+            stream.close();
+        }
+    }
+    
+    /**
+     * Записан ли результат во временный файл.
+     */
+    boolean isSpilled() {
+        return file != null;
+    }
+    
+    /**
+     * Размер результата в байтах.
+     */
+    long size() {
+        return file != null ? fileLength : count;
+    }
+    
+    /**
+     * Завершает запись и возвращает поток для чтения результата. Вызывается один раз.
+     */
+    InputStream getInputStream() throws IOException {
+        close();
+        if (file == null) {
+            InputStream result = new ByteArrayInputStream(buffer, 0, count);
+            buffer = null;
+            return result;
+        }
+        InputStream result = null;
+        try {
+            result = new MappedFileInputStream(file, fileLength, fileOwner, fileCleanable);
+            return result;
+        } finally {
+            if (result == null) {
+                fileCleanable.clean();
+            }
+            file = null;
+            fileOwner = null;
+            fileCleanable = null;
+        }
+    }
+    
+    /**
+     * Освобождает ресурсы, если результат не понадобился: закрывает и удаляет временный файл.
+     */
+    void discard() {
+        try {
+            close();
+        } catch (IOException e) {
+            logger.warn("Can not close spill file " + file.path, e);
+        }
+        buffer = null;
+        if (file != null) {
+            fileCleanable.clean();
+            file = null;
+            fileOwner = null;
+            fileCleanable = null;
+        }
+    }
+    
+    private void spill() throws IOException {
+        Path path = directory == null ? Files.createTempFile(TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX)
+                : Files.createTempFile(directory.toPath(), TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX);
+        file = new SpillFile(path.toFile());
+        fileOwner = new Object();
+        fileCleanable = cleaner.register(fileOwner, file);
+        boolean spilled = false;
+        try {
+            fileStream = new BufferedOutputStream(Files.newOutputStream(path), FILE_BUFFER_SIZE);
+            fileStream.write(buffer, 0, count);
+            spilled = true;
+        } finally {
+            if (!spilled) {
+                discard();
+            }
+        }
+        fileLength = count;
+        buffer = null;
+        count = 0;
+    }
+    
+    private void ensureCapacity(int argCapacity) {
+        if (argCapacity > buffer.length) {
+            // Растём вдвое, но не дальше порога: больше порога в heap не бывает.
+            int capacity = (int) Math.min(Math.max((long) buffer.length * 2, argCapacity),
+                    threshold);
+            byte[] grown = new byte[capacity];
+            System.arraycopy(buffer, 0, grown, 0, count);
+            buffer = grown;
+        }
+    }
+    
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+    
+    /**
+     * Временный файл и открытый для его чтения RandomAccessFile. Действие очистки: закрывает файл
+     * и удаляет его. Выполняется один раз - явно или Cleaner'ом; ссылок на потоки не содержит.
+     */
+    private static final class SpillFile implements Runnable {
+        
+        final File path;
+        private RandomAccessFile reader;
+        
+        SpillFile(File argPath) {
+            path = argPath;
+        }
+        
+        synchronized RandomAccessFile open() throws IOException {
+            reader = new RandomAccessFile(path, "r");
+            return reader;
+        }
+        
+        @Override
+        public synchronized void run() {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    logger.warn("Can not close spill file " + path, e);
+                }
+                reader = null;
+            }
+            if (!path.delete() && path.exists()) {
+                logger.warn("Can not delete spill file " + path);
+            }
+        }
+    }
+    
+    /**
+     * Чтение временного файла через отображение в память. Окна отображаются по очереди, прочитанное
+     * окно освобождается сборщиком мусора. Файл удаляется по достижении конца или при закрытии.
+     */
+    private static class MappedFileInputStream extends InputStream {
+        
+        private final long length;
+        // Не даёт Cleaner'у удалить файл, пока поток достижим.
+        private final Object owner;
+        private final Cleaner.Cleanable cleanable;
+        private FileChannel channel;
+        private MappedByteBuffer window;
+        private long windowStart;
+        
+        MappedFileInputStream(SpillFile argFile, long argLength, Object argOwner,
+                Cleaner.Cleanable argCleanable) throws IOException {
+            length = argLength;
+            owner = argOwner;
+            cleanable = argCleanable;
+            channel = argFile.open().getChannel();
+        }
+        
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return window.get() & 0xFF;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int result = Math.min(len, window.remaining());
+            window.get(b, off, result);
+            return result;
+        }
+        
+        @Override
+        public int available() throws IOException {
+            return window == null ? 0 : window.remaining();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            window = null;
+            if (channel != null) {
+                channel = null;
+                cleanable.clean();
+            }
+        }
+        
+        /**
+         * Отображает следующее окно, если текущее прочитано.
+         *
+         * @return false, если файл прочитан до конца
+         */
+        private boolean fill() throws IOException {
+            if (window != null && window.hasRemaining()) {
+                return true;
+            }
+            if (channel == null) {
+                return false;
+            }
+            long position = window == null ? windowStart : windowStart + window.capacity();
+            if (position >= length) {
+                close();
+                return false;
+            }
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(MAPPING_WINDOW, length - position));
+            return true;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import java.io.IOException;
+
+/**
+ * Текст документа, который трансформация "urn://smev-gov-ru/xmldsig/transform" получила бы из
+ * разбора его канонической формы, без самого разбора.
+ *
+ * Трансформация отбрасывает пробельные (в смысле String.trim()) текстовые события, а то, как
+ * парсер из состава JDK нарежет текст канонической формы на события, зависит от сущностей,
+ * ']', переводов строк и границ его буфера. Результат от нарезки не зависит, если текстовый узел
+ * целиком пробельный (он отбрасывается), или каждая серия пробельных символов в нём не длиннее
+ * {@link #MAX_WHITESPACE_RUN}, не содержит переводов строки и окружена обычными символами
+ * ({@link #isOrdinary(char)}), а не краем узла (узел передаётся целиком). Для остальных узлов
+ * фильтр сообщает, что результат без разбора получить нельзя.
+ *
+ * Текст узла передаётся {@link #characters(char[], int, int)} любыми порциями, конец узла -
+ * {@link #endText()}. Пробельная серия придерживается, пока не станет ясно, что за ней идёт
+ * содержимое, остальное сразу передаётся {@link #write(char[], int, int)}. Если фильтр вернул
+ * false, уже переданный текст узла не совпадает с результатом разбора и должен быть отброшен
+ * вызывающим.
+ *
+ * Экземпляр не потокобезопасен.
+ */
+abstract class SmevTextSplitFilter {
+    
+    /**
+     * Максимальная длина серии пробельных символов внутри текста, при которой результат не
+     * зависит от нарезки: границы буфера парсера ближе друг к другу не бывают.
+     */
+    static final int MAX_WHITESPACE_RUN = 32;
+    
+    private static final int START = 0;
+    private static final int LEADING_WHITESPACE = 1;
+    private static final int CONTENT = 2;
+    private static final int WHITESPACE_RUN = 3;
+    
+    private int state = START;
+    private char lastContent;
+    private final char[] whitespaceRun = new char[MAX_WHITESPACE_RUN];
+    private int whitespaceRunLength;
+    
+    /**
+     * Продолжение текущего текстового узла.
+     *
+     * @return false, если результат трансформации узла зависит от нарезки; фильтр готов
+     *         к следующему узлу
+     */
+    boolean characters(char[] argText, int argStart, int argLength) throws IOException {
+        int end = argStart + argLength;
+        int start = argStart;
+        for (int i = argStart; i < end; i++) {
+            char c = argText[i];
+            if (c <= ' ') {
+                if (state == CONTENT) {
+                    if (i > start) {
+                        write(argText, start, i - start);
+                    }
+                    if (!isOrdinary(i > argStart ? argText[i - 1] : lastContent)) {
+                        return reject();
+                    }
+                    state = WHITESPACE_RUN;
+                    whitespaceRunLength = 0;
+                }
+                if (state == WHITESPACE_RUN) {
+                    if (c == '\n' || c == '\r' || whitespaceRunLength == MAX_WHITESPACE_RUN) {
+                        return reject();
+                    }
+                    whitespaceRun[whitespaceRunLength++] = c;
+                } else {
+                    // Пробельное начало узла: отбрасывается, если весь узел пробельный.
+                    state = LEADING_WHITESPACE;
+                }
+                start = i + 1;
+            } else if (state != CONTENT) {
+                if (state == LEADING_WHITESPACE) {
+                    return reject();
+                }
+                if (state == WHITESPACE_RUN) {
+                    if (!isOrdinary(c)) {
+                        return reject();
+                    }
+                    write(whitespaceRun, 0, whitespaceRunLength);
+                }
+                state = CONTENT;
+            }
+        }
+        if (state == CONTENT && end > start) {
+            write(argText, start, end - start);
+            lastContent = argText[end - 1];
+        }
+        return true;
+    }
+    
+    /**
+     * Конец текстового узла: начальный или закрывающий тег, processing instruction.
+     *
+     * @return false, если узел кончается пробельной серией после содержимого
+     */
+    boolean endText() {
+        if (state == WHITESPACE_RUN) {
+            return reject();
+        }
+        state = START;
+        return true;
+    }
+    
+    /**
+     * Готовит фильтр к следующему текстовому узлу.
+     */
+    void reset() {
+        state = START;
+    }
+    
+    /**
+     * Получает текст, который трансформация запишет в результат.
+     */
+    protected abstract void write(char[] argText, int argStart, int argLength)
+            throws IOException;
+            
+    /**
+     * Обычный символ текста: не пробельный, не экранируемый канонизацией, не ']' и не половина
+     * суррогатной пары. Рядом с ним парсер текст не режет.
+     */
+    static boolean isOrdinary(char argChar) {
+        return argChar > ' ' && argChar != '&' && argChar != '<' && argChar != '>'
+                && argChar != ']' && !Character.isSurrogate(argChar);
+    }
+    
+    private boolean reject() {
+        state = START;
+        return false;
+    }
+}
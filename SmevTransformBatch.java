@@ -0,0 +1,211 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.xml.security.transforms.TransformationException;
+
+/**
+ * Пакетное выполнение трансформации "urn://smev-gov-ru/xmldsig/transform" и вычисление дайджестов
+ * её результата.
+ *
+ * Каждый элемент пакета трансформируется целиком, как есть: канонизация, разрешение ссылок
+ * ds:Reference и проверка подписи не выполняются. Дайджест элемента совпадёт с DigestValue,
+ * только если элемент - уже выделенный и канонизированный фрагмент, на который указывает
+ * Reference; дайджесты ссылок непосредственно по конверту считает {@link SmevReferenceDigester}.
+ *
+ * Элементы пакета обрабатываются параллельно на Executor, который задаёт вызывающий, например
+ * выделенный пул или Executors.newVirtualThreadPerTaskExecutor(). Вызывающий поток ждёт
+ * результатов, поэтому вызывать пакет из задач того же Executor с ограниченным числом потоков
+ * (в том числе ForkJoinPool.commonPool()) нельзя: все его потоки могут оказаться заняты
+ * ожиданием. Результаты возвращаются в порядке входных данных; ошибка одного элемента
+ * не прерывает обработку остальных и возвращается в его результате.
+ *
+ * Экземпляр потокобезопасен. Executor не закрывается - его жизненным циклом управляет вызывающий.
+ */
+public class SmevTransformBatch {
+    
+    private final Executor executor;
+    private final SmevTransformSpi transform = new SmevTransformSpi();
+    
+    public SmevTransformBatch(Executor argExecutor) {
+        if (argExecutor == null) {
+            throw new IllegalArgumentException("Executor must not be null");
+        }
+        executor = argExecutor;
+    }
+    
+    /**
+     * Трансформирует конверты (или фрагменты), результат каждого - байты после трансформации.
+     */
+    public List<Result> transform(Collection<byte[]> argEnvelopes) throws InterruptedException,
+            TransformationException {
+        return transformStreams(toStreams(argEnvelopes));
+    }
+    
+    /**
+     * Трансформирует входные потоки; каждый поток читается и закрывается в своей задаче.
+     */
+    public List<Result> transformStreams(Collection<? extends InputStream> argSources)
+            throws InterruptedException, TransformationException {
+        List<Callable<byte[]>> tasks = new ArrayList<Callable<byte[]>>(argSources.size());
+        for (final InputStream source : argSources) {
+            tasks.add(new Callable<byte[]>() {
+                
+                @Override
+                public byte[] call() throws Exception {
+                    ByteArrayOutputStream result = new ByteArrayOutputStream();
+                    transform.process(source, result);
+                    return result.toByteArray();
+                }
+            });
+        }
+        return invokeAll(tasks);
+    }
+    
+    /**
+     * Вычисляет дайджест результата трансформации каждого конверта (или фрагмента).
+     * Результат трансформации в памяти не накапливается.
+     *
+     * @param argDigestAlgorithm имя алгоритма для MessageDigest.getInstance, например "GOST3411"
+     */
+    public List<Result> digest(Collection<byte[]> argEnvelopes, String argDigestAlgorithm)
+            throws InterruptedException, NoSuchAlgorithmException, TransformationException {
+        return digestStreams(toStreams(argEnvelopes), argDigestAlgorithm);
+    }
+    
+    /**
+     * Вычисляет дайджест результата трансформации каждого входного потока.
+     */
+    public List<Result> digestStreams(Collection<? extends InputStream> argSources,
+            final String argDigestAlgorithm) throws InterruptedException,
+            NoSuchAlgorithmException, TransformationException {
+        // Неизвестный алгоритм - ошибка всего пакета, а не каждого элемента.
+        MessageDigest.getInstance(argDigestAlgorithm);
+        List<Callable<byte[]>> tasks = new ArrayList<Callable<byte[]>>(argSources.size());
+        for (final InputStream source : argSources) {
+            tasks.add(new Callable<byte[]>() {
+                
+                @Override
+                public byte[] call() throws Exception {
+                    return transform.digest(source,
+                            MessageDigest.getInstance(argDigestAlgorithm));
+                }
+            });
+        }
+        return invokeAll(tasks);
+    }
+    
+    /**
+     * @throws TransformationException если Executor отклонил задачу; уже переданные задачи
+     *         отменяются
+     */
+    private List<Result> invokeAll(List<Callable<byte[]>> argTasks) throws InterruptedException,
+            TransformationException {
+        List<FutureTask<byte[]>> futures = new ArrayList<FutureTask<byte[]>>(argTasks.size());
+        for (Callable<byte[]> task : argTasks) {
+            FutureTask<byte[]> future = new FutureTask<byte[]>(task);
+            try {
+                executor.execute(future);
+            } catch (RejectedExecutionException e) {
+                cancel(futures);
+                Object exArgs[] = {e.getMessage()};
+                throw new TransformationException(
+                        "Can not perform transformation " + SmevTransformSpi.ALGORITHM_URN, exArgs,
+                        e);
+            }
+            futures.add(future);
+        }
+        List<Result> results = new ArrayList<Result>(futures.size());
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(new Result(i, futures.get(i).get(), null));
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception) {
+                        results.add(new Result(i, null, (Exception) cause));
+                        continue;
+                    }
+                    // Error (OutOfMemoryError и т.п.) не относится к одному элементу:
+                    // пакет прерывается, Error пробрасывается как есть.
+                    cancel(futures);
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException("Unexpected throwable", cause);
+                }
+            }
+        } catch (InterruptedException e) {
+            cancel(futures);
+            throw e;
+        }
+        return results;
+    }
+    
+    private static void cancel(List<FutureTask<byte[]>> argFutures) {
+        for (FutureTask<byte[]> future : argFutures) {
+            future.cancel(true);
+        }
+    }
+    
+    private static List<InputStream> toStreams(Collection<byte[]> argEnvelopes) {
+        List<InputStream> result = new ArrayList<InputStream>(argEnvelopes.size());
+        for (byte[] envelope : argEnvelopes) {
+            result.add(new ByteArrayInputStream(envelope));
+        }
+        return result;
+    }
+    
+    /**
+     * Результат обработки одного элемента пакета: данные либо ошибка.
+     */
+    public static final class Result {
+        
+        private final int index;
+        private final byte[] data;
+        private final Exception error;
+        
+        Result(int argIndex, byte[] argData, Exception argError) {
+            index = argIndex;
+            data = argData;
+            error = argError;
+        }
+        
+        /**
+         * Позиция элемента во входных данных.
+         */
+        public int getIndex() {
+            return index;
+        }
+        
+        public boolean isSuccess() {
+            return error == null;
+        }
+        
+        /**
+         * Результат трансформации или дайджест; null, если обработка завершилась ошибкой.
+         */
+        public byte[] getData() {
+            return data;
+        }
+        
+        /**
+         * Ошибка обработки элемента или null.
+         */
+        public Exception getError() {
+            return error;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Кэш результатов трансформации "urn://smev-gov-ru/xmldsig/transform", адресуемый содержимым
+ * входного документа.
+ *
+ * Один и тот же фрагмент (например, SenderProvidedRequestData) трансформируется несколько раз:
+ * при подписи, при проверке собственной подписи, при повторных отправках. Кэш хранит копию
+ * входного документа и результат его трансформации. Запись ищется по быстрому некриптографическому
+ * 64-битному хэшу входных байт, а найденная запись считается попаданием, только если сохранённый
+ * вход побайтно совпадает с запрошенным: совпадение хэшей (случайное или подобранное) приводит
+ * к промаху, а не к подмене результата.
+ *
+ * Запись помнит, в каком режиме StAX-фабрик получен результат. Результат защищённого режима
+ * годится для обоих режимов, результат обычного режима в защищённом не выдаётся: документ,
+ * который защищённый режим отклонил бы (DTD, внешние сущности), должен быть отклонён и при
+ * попадании в кэш.
+ *
+ * Кэш разбит на {@link #SEGMENTS} сегментов, каждый - LinkedHashMap в порядке обращений под своей
+ * блокировкой, с пределом maxBytes / {@link #SEGMENTS}. Вытеснение давно не использованной записи
+ * сегмента стоит O(1); обращения к разным сегментам не блокируют друг друга, а сравнение байт
+ * выполняется вне блокировки. Документы больше maxEntryBytes не кэшируются. Потокобезопасен.
+ */
+public final class SmevTransformCache {
+    
+    /**
+     * Число сегментов, степень двойки.
+     */
+    static final int SEGMENTS = 16;
+    
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+    private static final long MIXER = 0xC2B2AE3D27D4EB4FL;
+    
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    // Случайное начальное значение хэша: подобрать документы с одинаковым хэшем заранее нельзя.
+    private final long seed = new Random().nextLong();
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    
+    /**
+     * @param argMaxBytes суммарный размер входных документов и результатов, при превышении
+     *        которого вытесняются записи
+     * @param argMaxEntryBytes максимальный размер кэшируемого входного документа
+     */
+    public SmevTransformCache(long argMaxBytes, int argMaxEntryBytes) {
+        maxBytes = argMaxBytes;
+        maxEntryBytes = argMaxEntryBytes;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(argMaxBytes / SEGMENTS);
+        }
+    }
+    
+    /**
+     * Помещается ли документ такого размера в кэш.
+     */
+    boolean accepts(int argInputLength) {
+        return argInputLength <= maxEntryBytes;
+    }
+    
+    /**
+     * Запись для входного документа или null, если её нет в кэше.
+     *
+     * @param argHardened трансформация выполняется в защищённом режиме StAX-фабрик
+     */
+    Entry get(byte[] argInput, boolean argHardened) {
+        long hash = hash(argInput);
+        Entry entry = segmentFor(hash).find(hash);
+        if (entry == null || !Arrays.equals(entry.input, argInput)
+                || argHardened && !entry.hardened) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry;
+    }
+    
+    /**
+     * Сохраняет результат. Входной документ копируется: вызывающий может изменить свой массив.
+     *
+     * @param argStats счётчики трансформации, получившей результат: по ним определяется режим
+     *        StAX-фабрик записи, они же возвращаются {@link Entry#newStats} при попаданиях
+     */
+    void put(byte[] argInput, byte[] argOutput, SmevTransformStats argStats) {
+        long hash = hash(argInput);
+        Entry entry = new Entry(hash, Arrays.copyOf(argInput, argInput.length), argOutput,
+                argStats);
+        segmentFor(hash).put(entry);
+    }
+    
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+    
+    public long getHits() {
+        return hits.get();
+    }
+    
+    public long getMisses() {
+        return misses.get();
+    }
+    
+    public long getEvictions() {
+        return evictions.get();
+    }
+    
+    /**
+     * Число записей.
+     */
+    public int getEntryCount() {
+        int result = 0;
+        for (Segment segment : segments) {
+            result += segment.count();
+        }
+        return result;
+    }
+    
+    /**
+     * Суммарный размер входных документов и результатов в кэше, байт.
+     */
+    public long getSize() {
+        return size.get();
+    }
+    
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+    
+    @Override
+    public String toString() {
+        return "SmevTransformCache [entries=" + getEntryCount() + ", size=" + size
+                + ", maxBytes=" + maxBytes + ", hits=" + hits + ", misses=" + misses
+                + ", evictions=" + evictions + "]";
+    }
+    
+    /**
+     * Хэш входных байт: по 8 байт за шаг умножением и сдвигом, без криптографической стойкости.
+     */
+    long hash(byte[] argInput) {
+        ByteBuffer buffer = ByteBuffer.wrap(argInput).order(ByteOrder.LITTLE_ENDIAN);
+        long h = seed ^ argInput.length * MULTIPLIER;
+        int i = 0;
+        for (int limit = argInput.length - 7; i < limit; i += 8) {
+            h = Long.rotateLeft(h ^ buffer.getLong(i) * MULTIPLIER, 31) * MIXER;
+        }
+        for (; i < argInput.length; i++) {
+            h = Long.rotateLeft(h ^ (argInput[i] & 0xFFL) * MULTIPLIER, 11) * MIXER;
+        }
+        h ^= h >>> 33;
+        h *= MULTIPLIER;
+        return h ^ h >>> 29;
+    }
+    
+    private Segment segmentFor(long argHash) {
+        return segments[(int) (argHash ^ argHash >>> 32) & (SEGMENTS - 1)];
+    }
+    
+    /**
+     * Запись кэша: копия входного документа, результат и счётчики трансформации.
+     */
+    static final class Entry {
+        
+        private final long hash;
+        private final byte[] input;
+        private final byte[] output;
+        private final boolean hardened;
+        private final long elements;
+        private final long attributes;
+        private final long namespaceRewrites;
+        private final long droppedWhitespace;
+        private final long size;
+        
+        Entry(long argHash, byte[] argInput, byte[] argOutput, SmevTransformStats argStats) {
+            hash = argHash;
+            input = argInput;
+            output = argOutput;
+            hardened = argStats.isHardened();
+            elements = argStats.getElements();
+            attributes = argStats.getAttributes();
+            namespaceRewrites = argStats.getNamespaceRewrites();
+            droppedWhitespace = argStats.getDroppedWhitespace();
+            size = (long) argInput.length + argOutput.length;
+        }
+        
+        /**
+         * Результат трансформации. Массив разделяется между вызывающими и не должен изменяться.
+         */
+        byte[] getOutput() {
+            return output;
+        }
+        
+        /**
+         * Счётчики для listeners при попадании: объём и состав документа - как у трансформации,
+         * заполнившей запись, длительность задаёт вызывающий.
+         */
+        SmevTransformStats newStats(SmevTransformSpi.Engine argEngine) {
+            SmevTransformStats result = new SmevTransformStats(argEngine);
+            result.setCached(true);
+            result.addBytesIn(input.length);
+            result.addBytesOut(output.length);
+            result.addElements(elements, attributes);
+            result.setNamespaceRewrites(namespaceRewrites);
+            result.setDroppedWhitespace(droppedWhitespace);
+            return result;
+        }
+    }
+    
+    /**
+     * Часть кэша под своей блокировкой. LinkedHashMap в порядке обращений: первая запись - давно
+     * не использованная, вытесняется первой.
+     */
+    private final class Segment {
+        
+        private final long maxBytes;
+        private final LinkedHashMap<Long, Entry> entries =
+                new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+        private long bytes;
+        
+        Segment(long argMaxBytes) {
+            maxBytes = argMaxBytes;
+        }
+        
+        synchronized Entry find(long argHash) {
+            return entries.get(argHash);
+        }
+        
+        synchronized void put(Entry argEntry) {
+            if (argEntry.size > maxBytes) {
+                return;
+            }
+            // Запись с тем же хэшем (тот же документ или коллизия) заменяется.
+            Entry previous = entries.put(argEntry.hash, argEntry);
+            bytes += argEntry.size;
+            size.addAndGet(argEntry.size);
+            if (previous != null) {
+                bytes -= previous.size;
+                size.addAndGet(-previous.size);
+            }
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (bytes > maxBytes) {
+                Entry evicted = eldest.next();
+                eldest.remove();
+                bytes -= evicted.size;
+                size.addAndGet(-evicted.size);
+                evictions.incrementAndGet();
+            }
+        }
+        
+        synchronized void clear() {
+            entries.clear();
+            size.addAndGet(-bytes);
+            bytes = 0;
+        }
+        
+        synchronized int count() {
+            return entries.size();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import java.io.File;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ru.alfabank.ccjava.trustcore.smev3.SmevTransformSpi.Engine;
+
+/**
+ * Настройки трансформации "urn://smev-gov-ru/xmldsig/transform": реализация, потоковый дайджест,
+ * debug-лог, временные файлы результата, кэш, планы и защищённый режим StAX-фабрик.
+ *
+ * Экземпляр неизменяем: методы with* возвращают копию с изменённым значением. Действующие
+ * настройки задаются целиком через {@link SmevTransformSpi#setConfig(SmevTransformConfig)}, так
+ * что трансформация видит согласованный набор значений, а не смесь старых и новых. Начальные
+ * значения берутся из системных свойств {@link SmevTransformSpi}.*_PROPERTY
+ * ({@link #fromSystemProperties()}).
+ */
+public final class SmevTransformConfig {
+    
+    private static Logger logger = LoggerFactory.getLogger(SmevTransformConfig.class);
+    
+    private final Engine engine;
+    private final boolean streamingDigest;
+    private final int debugCaptureLimit;
+    private final int debugSampleRate;
+    private final int spillThreshold;
+    private final File spillDirectory;
+    private final boolean cacheEnabled;
+    private final boolean plansEnabled;
+    private final boolean hardenedFactories;
+    
+    private SmevTransformConfig(Engine argEngine, boolean argStreamingDigest,
+            int argDebugCaptureLimit, int argDebugSampleRate, int argSpillThreshold,
+            File argSpillDirectory, boolean argCacheEnabled, boolean argPlansEnabled,
+            boolean argHardenedFactories) {
+        if (argEngine == null) {
+            throw new IllegalArgumentException("Engine must not be null");
+        }
+        if (argSpillThreshold < 0) {
+            throw new IllegalArgumentException("Spill threshold must not be negative");
+        }
+        engine = argEngine;
+        streamingDigest = argStreamingDigest;
+        debugCaptureLimit = argDebugCaptureLimit;
+        debugSampleRate = argDebugSampleRate;
+        spillThreshold = argSpillThreshold;
+        spillDirectory = argSpillDirectory;
+        cacheEnabled = argCacheEnabled;
+        plansEnabled = argPlansEnabled;
+        hardenedFactories = argHardenedFactories;
+    }
+    
+    /**
+     * Настройки из системных свойств; незаданные свойства принимают значения по умолчанию.
+     */
+    public static SmevTransformConfig fromSystemProperties() {
+        return new SmevTransformConfig(engineFromProperty(),
+                Boolean.getBoolean(SmevTransformSpi.STREAMING_DIGEST_PROPERTY),
+                Integer.getInteger(SmevTransformSpi.DEBUG_CAPTURE_LIMIT_PROPERTY, 64 * 1024),
+                Integer.getInteger(SmevTransformSpi.DEBUG_SAMPLE_RATE_PROPERTY, 1),
+                Integer.getInteger(SmevTransformSpi.SPILL_THRESHOLD_PROPERTY, 16 * 1024 * 1024),
+                spillDirectoryFromProperty(),
+                Boolean.getBoolean(SmevTransformSpi.CACHE_PROPERTY),
+                Boolean.getBoolean(SmevTransformSpi.PLANS_PROPERTY),
+                Boolean.getBoolean(SmevTransformSpi.HARDENED_FACTORIES_PROPERTY));
+    }
+    
+    public Engine getEngine() {
+        return engine;
+    }
+    
+    public SmevTransformConfig withEngine(Engine argEngine) {
+        return new SmevTransformConfig(argEngine, streamingDigest, debugCaptureLimit,
+                debugSampleRate, spillThreshold, spillDirectory, cacheEnabled, plansEnabled,
+                hardenedFactories);
+    }
+    
+    public boolean isStreamingDigest() {
+        return streamingDigest;
+    }
+    
+    /**
+     * См. {@link SmevTransformSpi#setStreamingDigest(boolean)}: в потоковом режиме
+     * {@link #getEngine()} не учитывается, debug-лог не пишется.
+     */
+    public SmevTransformConfig withStreamingDigest(boolean argStreamingDigest) {
+        return new SmevTransformConfig(engine, argStreamingDigest, debugCaptureLimit,
+                debugSampleRate, spillThreshold, spillDirectory, cacheEnabled, plansEnabled,
+                hardenedFactories);
+    }
+    
+    public int getDebugCaptureLimit() {
+        return debugCaptureLimit;
+    }
+    
+    /**
+     * См. {@link SmevTransformSpi#setDebugCaptureLimit(int)}.
+     */
+    public SmevTransformConfig withDebugCaptureLimit(int argBytes) {
+        return new SmevTransformConfig(engine, streamingDigest, argBytes, debugSampleRate,
+                spillThreshold, spillDirectory, cacheEnabled, plansEnabled, hardenedFactories);
+    }
+    
+    public int getDebugSampleRate() {
+        return debugSampleRate;
+    }
+    
+    /**
+     * См. {@link SmevTransformSpi#setDebugSampleRate(int)}.
+     */
+    public SmevTransformConfig withDebugSampleRate(int argRate) {
+        return new SmevTransformConfig(engine, streamingDigest, debugCaptureLimit, argRate,
+                spillThreshold, spillDirectory, cacheEnabled, plansEnabled, hardenedFactories);
+    }
+    
+    public int getSpillThreshold() {
+        return spillThreshold;
+    }
+    
+    /**
+     * См. {@link SmevTransformSpi#setSpillThreshold(int)}.
+     */
+    public SmevTransformConfig withSpillThreshold(int argBytes) {
+        return new SmevTransformConfig(engine, streamingDigest, debugCaptureLimit,
+                debugSampleRate, argBytes, spillDirectory, cacheEnabled, plansEnabled,
+                hardenedFactories);
+    }
+    
+    /**
+     * Каталог временных файлов результата; null - java.io.tmpdir.
+     */
+    public File getSpillDirectory() {
+        return spillDirectory;
+    }
+    
+    public SmevTransformConfig withSpillDirectory(File argDirectory) {
+        return new SmevTransformConfig(engine, streamingDigest, debugCaptureLimit,
+                debugSampleRate, spillThreshold, argDirectory, cacheEnabled, plansEnabled,
+                hardenedFactories);
+    }
+    
+    public boolean isCacheEnabled() {
+        return cacheEnabled;
+    }
+    
+    /**
+     * См. {@link SmevTransformSpi#setCacheEnabled(boolean)}.
+     */
+    public SmevTransformConfig withCacheEnabled(boolean argEnabled) {
+        return new SmevTransformConfig(engine, streamingDigest, debugCaptureLimit,
+                debugSampleRate, spillThreshold, spillDirectory, argEnabled, plansEnabled,
+                hardenedFactories);
+    }
+    
+    public boolean isPlansEnabled() {
+        return plansEnabled;
+    }
+    
+    /**
+     * См. {@link SmevTransformSpi#setPlansEnabled(boolean)}.
+     */
+    public SmevTransformConfig withPlansEnabled(boolean argEnabled) {
+        return new SmevTransformConfig(engine, streamingDigest, debugCaptureLimit,
+                debugSampleRate, spillThreshold, spillDirectory, cacheEnabled, argEnabled,
+                hardenedFactories);
+    }
+    
+    public boolean isHardenedFactories() {
+        return hardenedFactories;
+    }
+    
+    /**
+     * См. {@link SmevTransformSpi#setHardenedFactories(boolean)}.
+     */
+    public SmevTransformConfig withHardenedFactories(boolean argHardened) {
+        return new SmevTransformConfig(engine, streamingDigest, debugCaptureLimit,
+                debugSampleRate, spillThreshold, spillDirectory, cacheEnabled, plansEnabled,
+                argHardened);
+    }
+    
+    @Override
+    public String toString() {
+        return "SmevTransformConfig [engine=" + engine + ", streamingDigest=" + streamingDigest
+                + ", debugCaptureLimit=" + debugCaptureLimit + ", debugSampleRate="
+                + debugSampleRate + ", spillThreshold=" + spillThreshold + ", spillDirectory="
+                + spillDirectory + ", cacheEnabled=" + cacheEnabled + ", plansEnabled="
+                + plansEnabled + ", hardenedFactories=" + hardenedFactories + "]";
+    }
+    
+    private static File spillDirectoryFromProperty() {
+        String value = System.getProperty(SmevTransformSpi.SPILL_DIRECTORY_PROPERTY);
+        return value == null ? null : new File(value);
+    }
+    
+    private static Engine engineFromProperty() {
+        String value = System.getProperty(SmevTransformSpi.ENGINE_PROPERTY);
+        if (value == null) {
+            return Engine.CURSOR;
+        }
+        try {
+            return Engine.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.warn("Unknown transform engine " + value + ", " + Engine.CURSOR + " is used");
+            return Engine.CURSOR;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+
+/**
+ * Переиспользуемое окружение одной трансформации: настроенные StAX-фабрики, таблица префиксов
+ * событийной реализации, курсорная реализация и обход DOM с их буферами.
+ *
+ * Контексты берутся из {@link SmevTransformContextPool} на время трансформации и возвращаются
+ * методом {@link #release()}. В отличие от ThreadLocal, число контекстов определяется числом
+ * одновременных трансформаций, а не числом потоков, что важно для виртуальных потоков.
+ *
+ * Фабрика разбора в защищённом режиме (см. {@link SmevTransformSpi#setHardenedFactories(boolean)})
+ * не обрабатывает DTD и внешние сущности. Coalescing не включается ни в каком режиме: от деления
+ * текста на события зависит, какие пробельные узлы отбрасывает трансформация, а значит и
+ * DigestValue.
+ *
+ * Reader и writer не переиспользуются: StAX из состава JDK не позволяет сменить у них входной или
+ * выходной поток через публичный API, поэтому они создаются фабриками на каждую трансформацию.
+ *
+ * Экземпляр не потокобезопасен.
+ */
+final class SmevTransformContext {
+    
+    private final SmevTransformContextPool pool;
+    private final XMLInputFactory inputFactory;
+    private final XMLOutputFactory outputFactory;
+    private final XMLEventFactory eventFactory;
+    private final boolean hardened;
+    private final int generation;
+    private final SmevNamespaceTable namespaces = new SmevNamespaceTable();
+    private SmevCursorTransformer cursorTransformer;
+    private SmevDomTransformer domTransformer;
+    private boolean acquired;
+    
+    SmevTransformContext(SmevTransformContextPool argPool, boolean argHardened,
+            int argGeneration) {
+        pool = argPool;
+        hardened = argHardened;
+        generation = argGeneration;
+        inputFactory = XMLInputFactory.newInstance();
+        if (argHardened) {
+            inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+            inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                    Boolean.FALSE);
+        }
+        outputFactory = XMLOutputFactory.newInstance();
+        eventFactory = XMLEventFactory.newInstance();
+    }
+    
+    /**
+     * Настроена ли фабрика разбора в защищённом режиме.
+     */
+    boolean isHardened() {
+        return hardened;
+    }
+    
+    /**
+     * Поколение пула, в котором создан контекст.
+     */
+    int getGeneration() {
+        return generation;
+    }
+    
+    XMLInputFactory getInputFactory() {
+        return inputFactory;
+    }
+    
+    XMLOutputFactory getOutputFactory() {
+        return outputFactory;
+    }
+    
+    XMLEventFactory getEventFactory() {
+        return eventFactory;
+    }
+    
+    /**
+     * Таблица префиксов для событийной реализации.
+     */
+    SmevNamespaceTable getNamespaces() {
+        return namespaces;
+    }
+    
+    SmevCursorTransformer getCursorTransformer() {
+        if (cursorTransformer == null) {
+            cursorTransformer = new SmevCursorTransformer(inputFactory);
+        }
+        return cursorTransformer;
+    }
+    
+    SmevDomTransformer getDomTransformer() {
+        if (domTransformer == null) {
+            domTransformer = new SmevDomTransformer();
+        }
+        return domTransformer;
+    }
+    
+    void acquire() {
+        acquired = true;
+    }
+    
+    /**
+     * Сбрасывает состояние и возвращает контекст в пул. Повторный вызов ничего не делает.
+     */
+    void release() {
+        if (!acquired) {
+            return;
+        }
+        acquired = false;
+        namespaces.reset();
+        if (cursorTransformer != null) {
+            cursorTransformer.reset();
+        }
+        if (domTransformer != null) {
+            domTransformer.reset();
+        }
+        pool.release(this);
+    }
+}
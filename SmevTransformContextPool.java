@@ -0,0 +1,116 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Ограниченный пул {@link SmevTransformContext}.
+ *
+ * {@link #acquire()} не блокируется: если свободных контекстов нет, создаётся новый. Ограничено
+ * число хранимых контекстов - лишние при возврате отбрасываются. Поэтому контекст, не
+ * возвращённый в пул (например, недочитанный результат потоковой трансформации), просто
+ * собирается сборщиком мусора.
+ *
+ * Каждая смена режима фабрик ({@link #setHardened(boolean)}) начинает новое поколение пула, номер
+ * которого сохраняется в создаваемых контекстах. Контексты прежних поколений не выдаются
+ * {@link #acquire()} и не сохраняются {@link #release(SmevTransformContext)} и {@link #prefill()},
+ * даже если возвращаются или создаются одновременно со сменой режима.
+ *
+ * Потокобезопасен.
+ */
+final class SmevTransformContextPool {
+    
+    private final ArrayBlockingQueue<SmevTransformContext> idle;
+    private volatile Mode mode;
+    
+    SmevTransformContextPool(int argCapacity, boolean argHardened) {
+        idle = new ArrayBlockingQueue<SmevTransformContext>(Math.max(argCapacity, 1));
+        mode = new Mode(0, argHardened);
+    }
+    
+    SmevTransformContext acquire() {
+        return acquire(mode.hardened);
+    }
+    
+    /**
+     * Контекст с фабриками в заданном режиме. Если режим отличается от режима пула, контекст
+     * создаётся на одну трансформацию: его поколение не совпадает ни с одним поколением пула,
+     * и при возврате он отбрасывается.
+     */
+    SmevTransformContext acquire(boolean argHardened) {
+        Mode current = mode;
+        SmevTransformContext result;
+        if (current.hardened != argHardened) {
+            result = new SmevTransformContext(this, argHardened, -1);
+            result.acquire();
+            return result;
+        }
+        do {
+            result = idle.poll();
+        } while (result != null && result.getGeneration() != current.generation);
+        if (result == null) {
+            result = current.newContext(this);
+        }
+        result.acquire();
+        return result;
+    }
+    
+    void release(SmevTransformContext argContext) {
+        if (argContext.getGeneration() != mode.generation || !idle.offer(argContext)) {
+            return;
+        }
+        // Режим мог смениться между проверкой и offer, после очистки пула в setHardened.
+        if (argContext.getGeneration() != mode.generation) {
+            idle.remove(argContext);
+        }
+    }
+    
+    boolean isHardened() {
+        return mode.hardened;
+    }
+    
+    synchronized void setHardened(boolean argHardened) {
+        mode = new Mode(mode.generation + 1, argHardened);
+        idle.clear();
+    }
+    
+    /**
+     * Заполняет пул новыми контекстами до ёмкости, чтобы первые трансформации не создавали
+     * StAX-фабрики. Прекращается, если во время заполнения сменился режим.
+     *
+     * @return сколько контекстов создано
+     */
+    int prefill() {
+        Mode current = mode;
+        int created = 0;
+        while (idle.remainingCapacity() > 0 && mode == current) {
+            SmevTransformContext context = current.newContext(this);
+            if (!idle.offer(context)) {
+                break;
+            }
+            if (mode != current) {
+                idle.remove(context);
+                break;
+            }
+            created++;
+        }
+        return created;
+    }
+    
+    /**
+     * Режим фабрик и номер поколения пула, в котором он установлен.
+     */
+    private static final class Mode {
+        
+        private final int generation;
+        private final boolean hardened;
+        
+        Mode(int argGeneration, boolean argHardened) {
+            generation = argGeneration;
+            hardened = argHardened;
+        }
+        
+        SmevTransformContext newContext(SmevTransformContextPool argPool) {
+            return new SmevTransformContext(argPool, hardened, generation);
+        }
+    }
+}
@@ -0,0 +1,469 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import javax.xml.XMLConstants;
+
+import org.apache.xml.security.transforms.TransformationException;
+
+/**
+ * Ядро алгоритма "urn://smev-gov-ru/xmldsig/transform", принимающее узлы документа вызовами
+ * методов: переназначение префиксов, сортировка атрибутов и запись результата через
+ * {@link SmevCanonicalWriter}.
+ *
+ * Источник документа (StAX reader, DOM, разбор конверта) определяет вызывающий. Начальный тег
+ * передаётся тремя шагами: {@link #startElement(String, String)},
+ * {@link #attribute(String, String, String)} для каждого атрибута в порядке документа,
+ * {@link #endStartElement()}. Отсечение пробельных текстовых узлов - тоже забота вызывающего:
+ * {@link #characters(char[], int, int)} пишет всё, что ему передано.
+ *
+ * Если включены планы ({@link SmevTransformPlans}), начальные и закрывающие теги документа,
+ * идущего по выученному плану, пишутся готовыми байтами шагов плана; таблица префиксов
+ * восстанавливается только при отклонении от плана.
+ *
+ * Экземпляр не потокобезопасен. После {@link #reset()} его можно использовать для следующей
+ * трансформации: массивы атрибутов, таблица префиксов и буфер вывода при этом сохраняются.
+ */
+final class SmevTransformHandler {
+    
+    private static final int INITIAL_CAPACITY = 16;
+    
+    private static AttributeSlotComparator attributeSlotComparator = new AttributeSlotComparator();
+    
+    private final SmevCanonicalWriter dst = new SmevCanonicalWriter();
+    private final SmevNamespaceTable namespaces = new SmevNamespaceTable();
+    
+    private AttributeSlot[] attributes = new AttributeSlot[INITIAL_CAPACITY];
+    private int attributeCount;
+    private String elementNamespaceURI;
+    private String elementLocalName;
+    private int depth;
+    
+    // План документа: последний пройденный или выученный шаг (null - план не используется)
+    // и признак того, что документ пока идёт по плану и таблица префиксов не ведётся.
+    private SmevTransformPlans plans;
+    private SmevTransformPlans.Step step;
+    /** План корневого элемента текущего документа. */
+    private SmevTransformPlans.Plan documentPlan;
+    private boolean planned;
+    private SmevTransformPlans.Step[] openSteps = new SmevTransformPlans.Step[INITIAL_CAPACITY];
+    private SmevTransformPlans.Step[] path = new SmevTransformPlans.Step[INITIAL_CAPACITY];
+    private SmevCanonicalWriter template;
+    private ByteArrayOutputStream templateBytes;
+    
+    private SmevTransformStats stats = new SmevTransformStats(SmevTransformSpi.Engine.CURSOR);
+    
+    /**
+     * Задаёт счётчики, которые заполняются по ходу трансформации.
+     */
+    void setStats(SmevTransformStats argStats) {
+        stats = argStats;
+    }
+    
+    SmevTransformStats getStats() {
+        return stats;
+    }
+    
+    /**
+     * Задаёт планы для следующей трансформации (null - без планов). Действует до
+     * {@link #close()} или {@link #reset()}.
+     */
+    void setPlans(SmevTransformPlans argPlans) {
+        plans = argPlans;
+    }
+    
+    /**
+     * Начинает трансформацию с выводом в argDst.
+     */
+    void open(OutputStream argDst) {
+        dst.setOutput(argDst);
+        depth = 0;
+        step = plans != null ? plans.getRoot() : null;
+        planned = step != null;
+    }
+    
+    /**
+     * Начальный тег пишется в {@link #endStartElement()}, когда известны атрибуты.
+     */
+    void startElement(String argNamespaceURI, String argLocalName) throws IOException {
+        elementNamespaceURI = nonNull(argNamespaceURI);
+        elementLocalName = argLocalName;
+        attributeCount = 0;
+    }
+    
+    void attribute(String argNamespaceURI, String argLocalName, String argValue) {
+        if (attributeCount == attributes.length) {
+            attributes = Arrays.copyOf(attributes, attributes.length * 2);
+        }
+        AttributeSlot slot = attributes[attributeCount];
+        if (slot == null) {
+            slot = new AttributeSlot();
+            attributes[attributeCount] = slot;
+        }
+        slot.namespaceURI = nonNull(argNamespaceURI);
+        slot.localName = argLocalName;
+        slot.value = argValue;
+        slot.index = attributeCount;
+        attributeCount++;
+    }
+    
+    void endStartElement() throws IOException {
+        depth++;
+        stats.elementProcessed(attributeCount);
+        if (planned) {
+            SmevTransformPlans.Step next = findNextStep();
+            if (next != null) {
+                writeStep(next);
+                return;
+            }
+            restoreNamespaces();
+            planned = false;
+        }
+        
+        namespaces.pushScope();
+        
+        // Обработка элемента: NS prefix rewriting.
+        // N.B. Элементы в unqualified form не поддерживаются.
+        String prefix = namespaces.findPrefix(elementNamespaceURI);
+        if (prefix == null) {
+            prefix = namespaces.declarePrefix(elementNamespaceURI);
+        }
+        dst.writeStartElement(prefix, elementLocalName);
+        
+        // Атрибуты: отсортировать, затем промэпить namespace URI.
+        sortAttributes(attributeCount);
+        for (int i = 0; i < attributeCount; i++) {
+            AttributeSlot slot = attributes[i];
+            if (slot.namespaceURI.length() == 0) {
+                slot.prefix = XMLConstants.DEFAULT_NS_PREFIX;
+                continue;
+            }
+            String attributePrefix = namespaces.findPrefix(slot.namespaceURI);
+            if (attributePrefix == null) {
+                attributePrefix = namespaces.declarePrefix(slot.namespaceURI);
+            }
+            slot.prefix = attributePrefix;
+        }
+        
+        // Сначала prefix mappings текущего элемента, затем атрибуты,
+        // в том же порядке, что и в событийной реализации.
+        for (int i = namespaces.scopeStart(); i < namespaces.size(); i++) {
+            dst.writeNamespace(namespaces.getPrefix(i), namespaces.getURI(i));
+        }
+        for (int i = 0; i < attributeCount; i++) {
+            AttributeSlot slot = attributes[i];
+            dst.writeAttribute(slot.prefix, slot.localName, slot.value);
+        }
+        // Следом идёт текст, дочерний элемент или закрывающий тег, поэтому начальный тег
+        // можно закрыть сразу; пустой элемент получается в форме <a></a>, а не <a/>.
+        dst.closeStartElement();
+        
+        if (step != null) {
+            learnStep(prefix);
+        }
+    }
+    
+    void characters(char[] argText, int argStart, int argLength) throws IOException {
+        dst.writeCharacters(argText, argStart, argLength);
+    }
+    
+    void cdata(char[] argText, int argStart, int argLength) throws IOException {
+        dst.writeCData(argText, argStart, argLength);
+    }
+    
+    void endElement(String argNamespaceURI, String argLocalName)
+            throws IOException, TransformationException {
+        if (planned) {
+            dst.writeMarkup(openSteps[--depth].endTag);
+            openSteps[depth] = null;
+            return;
+        }
+        depth--;
+        String nsURI = nonNull(argNamespaceURI);
+        String prefix = namespaces.findPrefix(nsURI);
+        if (prefix == null) {
+            throw new TransformationException(
+                    "EndElement: prefix mapping is not found for namespace " + nsURI);
+        }
+        dst.writeEndElement(prefix, argLocalName);
+        
+        namespaces.popScope();
+    }
+    
+    /**
+     * Передаёт накопленный вывод в выходной поток и вызывает его flush().
+     */
+    void flush() throws IOException {
+        dst.flush();
+    }
+    
+    /**
+     * Передаёт остаток вывода в выходной поток. Сам поток не закрывается.
+     */
+    void close() throws IOException {
+        stats.setNamespaceRewrites(planned ? step.declaredCount : namespaces.declaredCount());
+        if (plans != null) {
+            plans.documentCompleted(planned, documentPlan);
+            documentPlan = null;
+            plans = null;
+        }
+        dst.close();
+    }
+    
+    /**
+     * Готовит экземпляр к следующей трансформации и освобождает ссылки на данные предыдущей.
+     */
+    void reset() {
+        dst.setOutput(null);
+        namespaces.reset();
+        for (AttributeSlot slot : attributes) {
+            if (slot != null) {
+                slot.namespaceURI = null;
+                slot.localName = null;
+                slot.value = null;
+                slot.prefix = null;
+            }
+        }
+        attributeCount = 0;
+        elementNamespaceURI = null;
+        elementLocalName = null;
+        depth = 0;
+        plans = null;
+        step = null;
+        documentPlan = null;
+        planned = false;
+        Arrays.fill(openSteps, null);
+        Arrays.fill(path, null);
+        stats = new SmevTransformStats(SmevTransformSpi.Engine.CURSOR);
+    }
+    
+    /**
+     * Шаг плана, совпадающий с текущим начальным тегом, или null.
+     */
+    private SmevTransformPlans.Step findNextStep() {
+        SmevTransformPlans.Step[] candidates = step.getNext();
+        for (int i = 0; i < candidates.length; i++) {
+            SmevTransformPlans.Step candidate = candidates[i];
+            if (candidate.depth == depth && candidate.localName.equals(elementLocalName)
+                    && candidate.namespaceURI.equals(elementNamespaceURI)
+                    && matchesAttributes(candidate)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+    
+    private boolean matchesAttributes(SmevTransformPlans.Step argStep) {
+        if (argStep.order.length != attributeCount) {
+            return false;
+        }
+        for (int i = 0; i < attributeCount; i++) {
+            AttributeSlot slot = attributes[i];
+            if (!argStep.attributeLocalNames[i].equals(slot.localName)
+                    || !argStep.attributeNamespaces[i].equals(slot.namespaceURI)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Пишет начальный тег по шагу плана: атрибуты лежат в порядке документа.
+     */
+    private void writeStep(SmevTransformPlans.Step argStep) throws IOException {
+        if (depth > openSteps.length) {
+            openSteps = Arrays.copyOf(openSteps, openSteps.length * 2);
+        }
+        openSteps[depth - 1] = argStep;
+        step = argStep;
+        if (depth == 1) {
+            documentPlan = argStep.plan;
+        }
+        byte[][] segments = argStep.segments;
+        dst.writeMarkup(segments[0]);
+        for (int i = 0; i < attributeCount; i++) {
+            dst.writeAttributeValue(attributes[argStep.order[i]].value);
+            dst.writeMarkup(segments[i + 1]);
+        }
+    }
+    
+    /**
+     * Восстанавливает таблицу префиксов, которую документ имел бы без плана: повторяет
+     * объявления всех пройденных шагов и закрывает области видимости уже закрытых элементов.
+     */
+    private void restoreNamespaces() {
+        int length = 0;
+        for (SmevTransformPlans.Step s = step; s.previous != null; s = s.previous) {
+            if (length == path.length) {
+                path = Arrays.copyOf(path, length * 2);
+            }
+            path[length++] = s;
+        }
+        int scopes = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            SmevTransformPlans.Step s = path[i];
+            path[i] = null;
+            for (; scopes >= s.depth; scopes--) {
+                namespaces.popScope();
+            }
+            namespaces.pushScope();
+            scopes++;
+            for (String uri : s.declaredURIs) {
+                namespaces.declarePrefix(uri);
+            }
+        }
+        // Текущий элемент ещё не открыт.
+        for (; scopes >= depth; scopes--) {
+            namespaces.popScope();
+        }
+        Arrays.fill(openSteps, null);
+    }
+    
+    /**
+     * Добавляет в план шаг для только что записанного начального тега.
+     */
+    private void learnStep(String argPrefix) throws IOException {
+        SmevTransformPlans.Plan plan = plans.reserveStep(step);
+        if (plan == null) {
+            step = null;
+            return;
+        }
+        int count = attributeCount;
+        String[] attributeNamespaces = new String[count];
+        String[] attributeLocalNames = new String[count];
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            AttributeSlot slot = attributes[i];
+            attributeNamespaces[slot.index] = slot.namespaceURI;
+            attributeLocalNames[slot.index] = slot.localName;
+            order[i] = slot.index;
+        }
+        int scopeStart = namespaces.scopeStart();
+        String[] declaredURIs = new String[namespaces.size() - scopeStart];
+        for (int i = 0; i < declaredURIs.length; i++) {
+            declaredURIs[i] = namespaces.getURI(scopeStart + i);
+        }
+        
+        // Байты тега без значений атрибутов.
+        if (template == null) {
+            template = new SmevCanonicalWriter();
+            templateBytes = new ByteArrayOutputStream();
+        }
+        template.setOutput(templateBytes);
+        byte[][] segments = new byte[count + 1][];
+        template.writeStartElement(argPrefix, elementLocalName);
+        for (int i = scopeStart; i < namespaces.size(); i++) {
+            template.writeNamespace(namespaces.getPrefix(i), namespaces.getURI(i));
+        }
+        for (int i = 0; i < count; i++) {
+            AttributeSlot slot = attributes[i];
+            template.writeAttributeStart(slot.prefix, slot.localName);
+            segments[i] = templateBytes();
+            template.writeAttributeEnd();
+        }
+        template.closeStartElement();
+        segments[count] = templateBytes();
+        template.writeEndElement(argPrefix, elementLocalName);
+        byte[] endTag = templateBytes();
+        template.close();
+        
+        SmevTransformPlans.Step learned = new SmevTransformPlans.Step(step, plan, depth,
+                elementNamespaceURI, elementLocalName, attributeNamespaces, attributeLocalNames,
+                order, segments, endTag, declaredURIs, namespaces.declaredCount());
+        // Равный шаг, добавленный другим потоком, даёт те же байты: продолжаем по нему.
+        step = plans.publish(step, learned);
+        if (depth == 1) {
+            documentPlan = step.plan;
+        }
+    }
+    
+    private byte[] templateBytes() throws IOException {
+        template.flush();
+        byte[] result = templateBytes.toByteArray();
+        templateBytes.reset();
+        return result;
+    }
+    
+    /**
+     * Сортирует атрибуты так же, как событийная реализация.
+     *
+     * StartElement из JDK хранит атрибуты в HashMap&lt;QName, Attribute&gt;, поэтому на сортировку
+     * они приходят в порядке корзин этой таблицы, а не в порядке документа. Компаратор атрибутов
+     * не задаёт полного порядка для смеси атрибутов с namespace и без, так что результат
+     * сортировки зависит от исходного порядка - воспроизводим его перед сортировкой.
+     */
+    private void sortAttributes(int argCount) {
+        if (argCount < 2) {
+            return;
+        }
+        int capacity = 16;
+        while (argCount > capacity * 3 / 4) {
+            capacity <<= 1;
+        }
+        for (int i = 0; i < argCount; i++) {
+            AttributeSlot slot = attributes[i];
+            int h = slot.namespaceURI.hashCode() ^ slot.localName.hashCode();
+            slot.bucket = (h ^ (h >>> 16)) & (capacity - 1);
+        }
+        // Устойчивая сортировка вставками по номеру корзины.
+        for (int i = 1; i < argCount; i++) {
+            AttributeSlot slot = attributes[i];
+            int j = i - 1;
+            while (j >= 0 && attributes[j].bucket > slot.bucket) {
+                attributes[j + 1] = attributes[j];
+                j--;
+            }
+            attributes[j + 1] = slot;
+        }
+        Arrays.sort(attributes, 0, argCount, attributeSlotComparator);
+    }
+    
+    private static String nonNull(String argNamespaceURI) {
+        return argNamespaceURI == null ? XMLConstants.NULL_NS_URI : argNamespaceURI;
+    }
+    
+    private static class AttributeSlot {
+        
+        String namespaceURI;
+        String localName;
+        String value;
+        String prefix;
+        int index;
+        int bucket;
+    }
+    
+    /**
+     * Повторяет логику сравнения SmevTransformSpi.AttributeSortingComparator.
+     */
+    private static class AttributeSlotComparator implements Comparator<AttributeSlot> {
+        
+        @Override
+        public int compare(AttributeSlot x, AttributeSlot y) {
+            String xNS = x.namespaceURI;
+            String yNS = y.namespaceURI;
+            
+            // Сначала сравниваем namespaces.
+            if (xNS == null || xNS.equals("")) {
+                if (yNS != null && !"".equals(xNS)) {
+                    return 1;
+                }
+            } else {
+                if (yNS == null || "".equals(yNS)) {
+                    return -1;
+                } else {
+                    int nsComparisonResult = xNS.compareTo(yNS);
+                    if (nsComparisonResult != 0) {
+                        return nsComparisonResult;
+                    }
+                }
+            }
+            
+            // Если namespaces признаны эквивалентными, сравниваем local names.
+            return x.localName.compareTo(y.localName);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.xml.security.transforms.TransformationException;
+
+/**
+ * Результат трансформации "urn://smev-gov-ru/xmldsig/transform", вычисляемый по мере чтения.
+ *
+ * Santuario считает DigestValue, копируя XMLSignatureInput в поток дайджеста порциями. Если отдать
+ * ему этот поток вместо массива байт, результат трансформации не материализуется в памяти:
+ * в буфере хранится только вывод последнего обработанного события входного документа.
+ *
+ * Закрытие потока закрывает и входной поток трансформации. Listeners оповещаются, когда
+ * трансформация дочитана до конца или прервана ошибкой; длительность включает время между
+ * чтениями.
+ */
+final class SmevTransformInputStream extends InputStream {
+    
+    private final InputStream source;
+    private final SmevTransformContext context;
+    private final SmevCursorTransformer transformer;
+    private final ChunkBuffer chunk = new ChunkBuffer();
+    private final SmevTransformStats stats;
+    private final long startTime = System.nanoTime();
+    private int position;
+    private boolean finished;
+    private boolean closed;
+    
+    /**
+     * @param argContext контекст трансформации; возвращается в пул, когда трансформация
+     *        завершена или поток закрыт
+     */
+    SmevTransformInputStream(InputStream argSrc, SmevTransformContext argContext,
+            SmevTransformStats argStats) throws TransformationException {
+        source = argSrc;
+        context = argContext;
+        transformer = argContext.getCursorTransformer();
+        stats = argStats;
+        transformer.setStats(argStats);
+        try {
+            transformer.open(argSrc, chunk);
+        } catch (TransformationException e) {
+            context.release();
+            throw e;
+        }
+    }
+    
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return chunk.byteAt(position++) & 0xFF;
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(len, chunk.size() - position);
+        chunk.copyTo(position, b, off, count);
+        position += count;
+        return count;
+    }
+    
+    @Override
+    public int available() throws IOException {
+        return closed ? 0 : chunk.size() - position;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (!finished) {
+            finished = true;
+            context.release();
+        }
+        source.close();
+    }
+    
+    /**
+     * Продвигает трансформацию, пока в буфере не появятся непрочитанные байты.
+     *
+     * @return false, если трансформация завершена и все байты прочитаны
+     */
+    private boolean fill() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (position == chunk.size()) {
+            if (finished) {
+                return false;
+            }
+            chunk.reset();
+            position = 0;
+            try {
+                if (!transformer.next()) {
+                    finished = true;
+                    // Сбрасывает в буфер остаток вывода writer'а.
+                    transformer.close();
+                    context.release();
+                    stats.addBytesOut(chunk.size());
+                    stats.setDurationNanos(System.nanoTime() - startTime);
+                    SmevTransformSpi.transformCompleted(stats);
+                } else {
+                    stats.addBytesOut(chunk.size());
+                }
+            } catch (TransformationException e) {
+                finished = true;
+                context.release();
+                stats.setDurationNanos(System.nanoTime() - startTime);
+                SmevTransformSpi.transformFailed(stats, e);
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+        return true;
+    }
+    
+    private static class ChunkBuffer extends ByteArrayOutputStream {
+        
+        byte byteAt(int argIndex) {
+            return buf[argIndex];
+        }
+        
+        void copyTo(int argFrom, byte[] argDst, int argOffset, int argLength) {
+            System.arraycopy(buf, argFrom, argDst, argOffset, argLength);
+        }
+    }
+}
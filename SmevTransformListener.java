@@ -0,0 +1,21 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+/**
+ * Получатель статистики трансформаций "urn://smev-gov-ru/xmldsig/transform".
+ *
+ * Регистрируется через {@link SmevTransformSpi#addListener(SmevTransformListener)}. Методы
+ * вызываются в потоке, выполнившем трансформацию, поэтому должны быть быстрыми и
+ * потокобезопасными. Исключения из них логируются и на результат трансформации не влияют.
+ */
+public interface SmevTransformListener {
+    
+    /**
+     * Трансформация успешно завершена.
+     */
+    void transformCompleted(SmevTransformStats argStats);
+    
+    /**
+     * Трансформация прервана ошибкой. Счётчики отражают обработанную до ошибки часть документа.
+     */
+    void transformFailed(SmevTransformStats argStats, Exception argError);
+}
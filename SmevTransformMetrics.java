@@ -0,0 +1,180 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Накопительные метрики трансформаций: счётчики и гистограммы длительности,
+ * размеров входного и выходного документа и числа элементов.
+ *
+ * Готовая реализация {@link SmevTransformListener} для экспорта в систему мониторинга:
+ * регистрируется через {@link SmevTransformSpi#addListener(SmevTransformListener)}, значения
+ * снимаются геттерами. Потокобезопасна.
+ */
+public class SmevTransformMetrics implements SmevTransformListener {
+    
+    private final AtomicLong transforms = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong elements = new AtomicLong();
+    private final AtomicLong attributes = new AtomicLong();
+    private final AtomicLong namespaceRewrites = new AtomicLong();
+    private final AtomicLong droppedWhitespace = new AtomicLong();
+    private final Histogram latencyNanos = new Histogram();
+    private final Histogram inputSize = new Histogram();
+    private final Histogram outputSize = new Histogram();
+    private final Histogram elementCount = new Histogram();
+    
+    @Override
+    public void transformCompleted(SmevTransformStats argStats) {
+        transforms.incrementAndGet();
+        record(argStats);
+    }
+    
+    @Override
+    public void transformFailed(SmevTransformStats argStats, Exception argError) {
+        failures.incrementAndGet();
+        record(argStats);
+    }
+    
+    private void record(SmevTransformStats argStats) {
+        bytesIn.addAndGet(argStats.getBytesIn());
+        bytesOut.addAndGet(argStats.getBytesOut());
+        elements.addAndGet(argStats.getElements());
+        attributes.addAndGet(argStats.getAttributes());
+        namespaceRewrites.addAndGet(argStats.getNamespaceRewrites());
+        droppedWhitespace.addAndGet(argStats.getDroppedWhitespace());
+        latencyNanos.record(argStats.getDurationNanos());
+        inputSize.record(argStats.getBytesIn());
+        outputSize.record(argStats.getBytesOut());
+        elementCount.record(argStats.getElements());
+    }
+    
+    public long getTransforms() {
+        return transforms.get();
+    }
+    
+    public long getFailures() {
+        return failures.get();
+    }
+    
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+    
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+    
+    public long getElements() {
+        return elements.get();
+    }
+    
+    public long getAttributes() {
+        return attributes.get();
+    }
+    
+    public long getNamespaceRewrites() {
+        return namespaceRewrites.get();
+    }
+    
+    public long getDroppedWhitespace() {
+        return droppedWhitespace.get();
+    }
+    
+    /**
+     * Гистограмма длительности трансформаций, нс.
+     */
+    public Histogram getLatencyNanos() {
+        return latencyNanos;
+    }
+    
+    /**
+     * Гистограмма размера входных документов, байт.
+     */
+    public Histogram getInputSize() {
+        return inputSize;
+    }
+    
+    /**
+     * Гистограмма размера результатов трансформации, байт.
+     */
+    public Histogram getOutputSize() {
+        return outputSize;
+    }
+    
+    /**
+     * Гистограмма числа элементов в документе.
+     */
+    public Histogram getElementCount() {
+        return elementCount;
+    }
+    
+    /**
+     * Гистограмма с корзинами по степеням двойки: значение v попадает в корзину с верхней
+     * границей 2^k, где 2^(k-1) &lt; v &lt;= 2^k. Погрешность перцентилей - не более чем вдвое,
+     * что достаточно для наблюдения за регрессиями и не требует синхронизации.
+     */
+    public static class Histogram {
+        
+        private static final int BUCKETS = 64;
+        
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong max = new AtomicLong();
+        
+        void record(long argValue) {
+            long value = Math.max(argValue, 0);
+            counts.incrementAndGet(bucketOf(value));
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+        
+        public long getCount() {
+            long result = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                result += counts.get(i);
+            }
+            return result;
+        }
+        
+        public long getMax() {
+            return max.get();
+        }
+        
+        /**
+         * Верхняя граница корзины, в которую попадает перцентиль argPercentile (0..100).
+         */
+        public long getValueAtPercentile(double argPercentile) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * Math.min(Math.max(argPercentile, 0), 100) / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= Math.max(rank, 1)) {
+                    return Math.min(upperBound(i), getMax());
+                }
+            }
+            return getMax();
+        }
+        
+        private static int bucketOf(long argValue) {
+            return argValue <= 1
+                    ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(argValue - 1));
+        }
+        
+        private static long upperBound(int argBucket) {
+            return argBucket >= 63 ? Long.MAX_VALUE : 1L << argBucket;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Выученные планы трансформации "urn://smev-gov-ru/xmldsig/transform" для повторяющихся типов
+ * сообщений.
+ *
+ * Префиксы nsN, объявления namespace и порядок атрибутов в результате зависят только от имён
+ * элементов и атрибутов и от того, что им предшествует в документе, но не от значений. Сообщения
+ * одного типа (например, SendRequestRequest с одним и тем же видом сведений) совпадают по этой
+ * разметке, поэтому результат вычислений для каждого начального тега можно запомнить.
+ *
+ * План - дерево шагов: шаг соответствует начальному тегу с данными глубиной, именем и набором
+ * атрибутов (в порядке документа) после заданной последовательности предыдущих шагов. Шаг хранит
+ * готовые байты тега без значений атрибутов, перестановку атрибутов и закрывающий тег. Пока
+ * документ идёт по известным шагам, {@link SmevTransformHandler} пишет их байты, не ведя таблицу
+ * префиксов и не сортируя атрибуты. На первом расхождении он восстанавливает таблицу префиксов
+ * по пройденным шагам и продолжает обычным путём, достраивая план новыми шагами для следующих
+ * документов того же вида.
+ *
+ * Дерево начинается с корневого элемента: каждый вид корневого тега (имя и набор атрибутов)
+ * образует отдельный план {@link Plan} со своим лимитом шагов, так что документы, чья разметка
+ * постоянно меняется, исчерпывают только собственный лимит и не мешают выучить другие виды
+ * сообщений. Когда лимит плана исчерпан, план перестаёт расти, а документы, отклоняющиеся от
+ * него, обрабатываются обычным путём. Число планов тоже ограничено: новый план вытесняет
+ * тот, по которому дольше всего не проходили документы.
+ *
+ * Новые шаги публикуются через compareAndSet списка продолжений. Если другой поток уже добавил
+ * равный шаг (то же имя и набор атрибутов на той же глубине), используется он, так что
+ * одновременно обучающиеся потоки не создают дубликатов. Потокобезопасен.
+ */
+public final class SmevTransformPlans {
+    
+    private final int maxPlans;
+    private final int maxStepsPerPlan;
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private volatile Step root = new Step();
+    
+    /**
+     * @param argMaxPlans максимальное число планов (видов корневого тега)
+     * @param argMaxStepsPerPlan максимальное число шагов одного плана
+     */
+    public SmevTransformPlans(int argMaxPlans, int argMaxStepsPerPlan) {
+        maxPlans = argMaxPlans;
+        maxStepsPerPlan = argMaxStepsPerPlan;
+    }
+    
+    Step getRoot() {
+        return root;
+    }
+    
+    /**
+     * Резервирует место под новый шаг после argPrevious.
+     *
+     * @return план, в который войдёт шаг (для корневого элемента - новый план), или null, если
+     *         лимит шагов плана исчерпан
+     */
+    Plan reserveStep(Step argPrevious) {
+        Plan plan = argPrevious.plan;
+        if (plan == null) {
+            if (maxPlans < 1) {
+                return null;
+            }
+            plan = new Plan(clock.incrementAndGet());
+        }
+        return plan.reserve(maxStepsPerPlan) ? plan : null;
+    }
+    
+    /**
+     * Добавляет шаг в продолжения argPrevious; место под него зарезервировано
+     * {@link #reserveStep(Step)}.
+     *
+     * @return argStep или равный ему шаг, добавленный другим потоком раньше (резерв тогда
+     *         возвращается)
+     */
+    Step publish(Step argPrevious, Step argStep) {
+        while (true) {
+            Step[] current = argPrevious.getNext();
+            for (int i = 0; i < current.length; i++) {
+                if (current[i].sameTag(argStep)) {
+                    argStep.plan.release();
+                    return current[i];
+                }
+            }
+            int victim = -1;
+            Step[] update;
+            if (argPrevious.plan == null && current.length >= maxPlans) {
+                victim = leastRecentlyUsed(current);
+                update = current.clone();
+                update[victim] = argStep;
+            } else {
+                update = Arrays.copyOf(current, current.length + 1);
+                update[current.length] = argStep;
+            }
+            if (argPrevious.compareAndSetNext(current, update)) {
+                if (victim >= 0) {
+                    evictions.incrementAndGet();
+                }
+                return argStep;
+            }
+        }
+    }
+    
+    /**
+     * Учитывает документ: пройден по плану целиком или потребовал обычного пути.
+     *
+     * @param argPlan план корневого элемента документа или null, если документ в план не попал
+     */
+    void documentCompleted(boolean argPlanned, Plan argPlan) {
+        if (argPlan != null) {
+            argPlan.lastUsed = clock.incrementAndGet();
+        }
+        if (argPlanned) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Удаляет все планы. Трансформации, которые уже идут по плану, завершаются по нему.
+     */
+    public void clear() {
+        root = new Step();
+    }
+    
+    /**
+     * Документов, пройденных по плану целиком.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+    
+    /**
+     * Документов, отклонившихся от плана (в том числе тех, по которым план был выучен).
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+    
+    /**
+     * Планов, вытесненных новыми видами корневого тега.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+    
+    /**
+     * Число планов.
+     */
+    public int getPlanCount() {
+        return root.getNext().length;
+    }
+    
+    /**
+     * Число шагов во всех планах.
+     */
+    public int getStepCount() {
+        int result = 0;
+        for (Step first : root.getNext()) {
+            result += first.plan.steps.get();
+        }
+        return result;
+    }
+    
+    public int getMaxPlans() {
+        return maxPlans;
+    }
+    
+    public int getMaxStepsPerPlan() {
+        return maxStepsPerPlan;
+    }
+    
+    @Override
+    public String toString() {
+        return "SmevTransformPlans [plans=" + getPlanCount() + ", steps=" + getStepCount()
+                + ", maxPlans=" + maxPlans + ", maxStepsPerPlan=" + maxStepsPerPlan + ", hits="
+                + hits.get() + ", misses=" + misses.get() + ", evictions=" + evictions.get()
+                + "]";
+    }
+    
+    private static int leastRecentlyUsed(Step[] argFirstSteps) {
+        int result = 0;
+        for (int i = 1; i < argFirstSteps.length; i++) {
+            if (argFirstSteps[i].plan.lastUsed < argFirstSteps[result].plan.lastUsed) {
+                result = i;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * План одного вида корневого тега: счётчик его шагов и время последнего использования.
+     */
+    static final class Plan {
+        
+        private final AtomicInteger steps = new AtomicInteger();
+        /** Значение часов {@link SmevTransformPlans#clock} при последнем документе. */
+        private volatile long lastUsed;
+        
+        private Plan(long argCreated) {
+            lastUsed = argCreated;
+        }
+        
+        private boolean reserve(int argMaxSteps) {
+            while (true) {
+                int current = steps.get();
+                if (current >= argMaxSteps) {
+                    return false;
+                }
+                if (steps.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+        
+        private void release() {
+            steps.decrementAndGet();
+        }
+    }
+    
+    /**
+     * Начальный тег в плане. Неизменяем, кроме списка следующих шагов.
+     */
+    static final class Step {
+        
+        private static final Step[] NO_STEPS = new Step[0];
+        private static final AtomicReferenceFieldUpdater<Step, Step[]> NEXT =
+                AtomicReferenceFieldUpdater.newUpdater(Step.class, Step[].class, "next");
+                
+        final Step previous;
+        /** План, в который входит шаг; null у корня дерева. */
+        final Plan plan;
+        /** Глубина элемента, корень документа - 1. */
+        final int depth;
+        final String namespaceURI;
+        final String localName;
+        /** Имена атрибутов в порядке документа. */
+        final String[] attributeNamespaces;
+        final String[] attributeLocalNames;
+        /** Индексы атрибутов (в порядке документа) в порядке вывода. */
+        final int[] order;
+        /**
+         * Байты тега между значениями атрибутов: segments[0] - от начала тега до значения
+         * первого атрибута, segments[attributeCount] - от значения последнего атрибута до конца
+         * тега.
+         */
+        final byte[][] segments;
+        final byte[] endTag;
+        /** Namespace URI, для которых в этом теге объявлены новые префиксы, по порядку. */
+        final String[] declaredURIs;
+        /** Префиксов объявлено с начала документа, включая этот тег. */
+        final int declaredCount;
+        
+        private volatile Step[] next = NO_STEPS;
+        
+        private Step() {
+            this(null, null, 0, null, null, null, null, null, null, null, null, 0);
+        }
+        
+        Step(Step argPrevious, Plan argPlan, int argDepth, String argNamespaceURI,
+                String argLocalName, String[] argAttributeNamespaces,
+                String[] argAttributeLocalNames, int[] argOrder, byte[][] argSegments,
+                byte[] argEndTag, String[] argDeclaredURIs, int argDeclaredCount) {
+            previous = argPrevious;
+            plan = argPlan;
+            depth = argDepth;
+            namespaceURI = argNamespaceURI;
+            localName = argLocalName;
+            attributeNamespaces = argAttributeNamespaces;
+            attributeLocalNames = argAttributeLocalNames;
+            order = argOrder;
+            segments = argSegments;
+            endTag = argEndTag;
+            declaredURIs = argDeclaredURIs;
+            declaredCount = argDeclaredCount;
+        }
+        
+        /**
+         * Известные продолжения документа после этого шага.
+         */
+        Step[] getNext() {
+            return next;
+        }
+        
+        private boolean compareAndSetNext(Step[] argExpected, Step[] argUpdate) {
+            return NEXT.compareAndSet(this, argExpected, argUpdate);
+        }
+        
+        /**
+         * Тот же начальный тег: глубина, имя и атрибуты в порядке документа.
+         */
+        private boolean sameTag(Step argStep) {
+            return depth == argStep.depth && localName.equals(argStep.localName)
+                    && namespaceURI.equals(argStep.namespaceURI)
+                    && Arrays.equals(attributeLocalNames, argStep.attributeLocalNames)
+                    && Arrays.equals(attributeNamespaces, argStep.attributeNamespaces);
+        }
+    }
+}
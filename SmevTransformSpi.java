@@ -2,17 +2,22 @@ package ru.alfabank.ccjava.trustcore.smev3;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Stack;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -20,12 +25,10 @@ import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.stream.XMLEventFactory;
 import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLEventWriter;
-import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.stream.events.Attribute;
 import javax.xml.stream.events.EndElement;
-import javax.xml.stream.events.Namespace;
 import javax.xml.stream.events.StartElement;
 import javax.xml.stream.events.XMLEvent;
 import javax.xml.transform.OutputKeys;
@@ -36,6 +39,7 @@ import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stax.StAXResult;
 import javax.xml.transform.stream.StreamResult;
 
 import org.apache.xml.security.c14n.CanonicalizationException;
@@ -60,6 +64,10 @@ import org.xml.sax.SAXException;
  * Методические рекомендации по работе с ЕСМЭВ версия 3.4.0.3 
  * https://smev3.gosuslugi.ru/portal/
  * 
+ * Минимальная версия Java - 9: временные файлы результата удаляются через
+ * {@link java.lang.ref.Cleaner} ({@link SmevSpillOutputStream}). Исходники собираются с
+ * -source/-target 9 или --release 9 и новее.
+ * 
  * @author dpryakhin с редакциями VBurmistrov
  * 
  *         (https://github.com/MaksimOK/smev3cxf/blob/master/client_1.11/crypto/src/main/java/ru/
@@ -68,40 +76,144 @@ import org.xml.sax.SAXException;
  */
 public class SmevTransformSpi extends TransformSpi {
     
-    private static final String NS_PREFIX = "ns";
     public static final String ALGORITHM_URN = "urn://smev-gov-ru/xmldsig/transform";
     private static final String ENCODING_UTF_8 = "UTF-8";
     
+    /**
+     * Системное свойство, задающее реализацию трансформации: CURSOR (по умолчанию) или EVENT.
+     */
+    public static final String ENGINE_PROPERTY = "ru.alfabank.ccjava.trustcore.smev3.engine";
+    
+    /**
+     * Системное свойство, включающее потоковый режим вычисления дайджеста по умолчанию.
+     */
+    public static final String STREAMING_DIGEST_PROPERTY =
+            "ru.alfabank.ccjava.trustcore.smev3.streamingDigest";
+            
+    /**
+     * Системное свойство: сколько первых байт результата выводить в debug-лог (по умолчанию 64 КБ).
+     */
+    public static final String DEBUG_CAPTURE_LIMIT_PROPERTY =
+            "ru.alfabank.ccjava.trustcore.smev3.debugCaptureLimit";
+            
+    /**
+     * Системное свойство: результат какой по счёту трансформации выводить в debug-лог
+     * (по умолчанию 1 - каждой).
+     */
+    public static final String DEBUG_SAMPLE_RATE_PROPERTY =
+            "ru.alfabank.ccjava.trustcore.smev3.debugSampleRate";
+            
+    /**
+     * Системное свойство: сколько контекстов трансформации (StAX-фабрики и буферы) хранить
+     * для повторного использования (по умолчанию - два на процессор).
+     */
+    public static final String CONTEXT_POOL_SIZE_PROPERTY =
+            "ru.alfabank.ccjava.trustcore.smev3.contextPoolSize";
+            
+    /**
+     * Системное свойство, включающее кэш результатов трансформации (по умолчанию выключен).
+     */
+    public static final String CACHE_PROPERTY = "ru.alfabank.ccjava.trustcore.smev3.cache";
+    
+    /**
+     * Системное свойство: объём кэша результатов трансформации, байт (по умолчанию 64 МБ).
+     */
+    public static final String CACHE_MAX_BYTES_PROPERTY =
+            "ru.alfabank.ccjava.trustcore.smev3.cacheMaxBytes";
+            
+    /**
+     * Системное свойство: максимальный размер документа, результат трансформации которого
+     * кэшируется, байт (по умолчанию 1 МБ).
+     */
+    public static final String CACHE_MAX_ENTRY_BYTES_PROPERTY =
+            "ru.alfabank.ccjava.trustcore.smev3.cacheMaxEntryBytes";
+            
+    /**
+     * Системное свойство: сколько байт результата enginePerformTransform(XMLSignatureInput)
+     * держать в heap, прежде чем сбросить его во временный файл (по умолчанию 16 МБ).
+     */
+    public static final String SPILL_THRESHOLD_PROPERTY =
+            "ru.alfabank.ccjava.trustcore.smev3.spillThreshold";
+            
+    /**
+     * Системное свойство: каталог временных файлов результата (по умолчанию java.io.tmpdir).
+     */
+    public static final String SPILL_DIRECTORY_PROPERTY =
+            "ru.alfabank.ccjava.trustcore.smev3.spillDirectory";
+            
+    /**
+     * Системное свойство, включающее выученные планы трансформации для повторяющихся типов
+     * сообщений (по умолчанию выключены).
+     */
+    public static final String PLANS_PROPERTY = "ru.alfabank.ccjava.trustcore.smev3.plans";
+    
+    /**
+     * Системное свойство: максимальное число планов, то есть видов корневого тега
+     * (по умолчанию 64).
+     */
+    public static final String PLANS_MAX_PLANS_PROPERTY =
+            "ru.alfabank.ccjava.trustcore.smev3.plansMaxPlans";
+            
+    /**
+     * Системное свойство: максимальное число шагов одного плана (по умолчанию 2048).
+     */
+    public static final String PLANS_MAX_STEPS_PROPERTY =
+            "ru.alfabank.ccjava.trustcore.smev3.plansMaxSteps";
+            
+    /**
+     * Системное свойство, включающее защищённый режим StAX-фабрик: без DTD и внешних сущностей
+     * (по умолчанию выключен).
+     */
+    public static final String HARDENED_FACTORIES_PROPERTY =
+            "ru.alfabank.ccjava.trustcore.smev3.hardenedFactories";
+            
     private static Logger logger = LoggerFactory.getLogger(WrongSmevTransformSpi.class);
     private static AttributeSortingComparator attributeSortingComparator =
             new AttributeSortingComparator();
+            
+    private static volatile SmevTransformConfig config =
+            SmevTransformConfig.fromSystemProperties();
+    private static final AtomicLong debugSampleCounter = new AtomicLong();
     
-    private static ThreadLocal<XMLInputFactory> inputFactory =
-            new ThreadLocal<XMLInputFactory>() {
-                
-                @Override
-                protected XMLInputFactory initialValue() {
-                    return XMLInputFactory.newInstance();
-                }
-            };
+    private static final List<SmevTransformListener> listeners =
+            new CopyOnWriteArrayList<SmevTransformListener>();
+            
+    private static final SmevTransformCache cache = new SmevTransformCache(
+            Long.getLong(CACHE_MAX_BYTES_PROPERTY, 64 * 1024 * 1024),
+            Integer.getInteger(CACHE_MAX_ENTRY_BYTES_PROPERTY, 1024 * 1024));
+            
+    private static final SmevTransformPlans plans = new SmevTransformPlans(
+            Integer.getInteger(PLANS_MAX_PLANS_PROPERTY, 64),
+            Integer.getInteger(PLANS_MAX_STEPS_PROPERTY, 2048));
+            
+    private static final SmevTransformContextPool contexts = new SmevTransformContextPool(
+            Integer.getInteger(CONTEXT_POOL_SIZE_PROPERTY,
+                    Runtime.getRuntime().availableProcessors() * 2),
+            config.isHardenedFactories());
+            
+    private final SmevTransformConfig instanceConfig;
     
-    private static ThreadLocal<XMLOutputFactory> outputFactory =
-            new ThreadLocal<XMLOutputFactory>() {
-                
-                @Override
-                protected XMLOutputFactory initialValue() {
-                    return XMLOutputFactory.newInstance();
-                }
-            };
+    /**
+     * Трансформация с глобальными настройками ({@link #setConfig(SmevTransformConfig)}). Этим
+     * конструктором экземпляры создаёт Santuario.
+     */
+    public SmevTransformSpi() {
+        instanceConfig = null;
+    }
     
-    private static ThreadLocal<XMLEventFactory> eventFactory =
-            new ThreadLocal<XMLEventFactory>() {
-                
-                @Override
-                protected XMLEventFactory initialValue() {
-                    return XMLEventFactory.newInstance();
-                }
-            };
+    /**
+     * Трансформация с собственными настройками: глобальные настройки на неё не влияют и ею
+     * не меняются. Пул контекстов общий; если защищённый режим argConfig отличается от
+     * глобального, StAX-фабрики создаются на одну трансформацию. Кэш и планы тоже общие, и
+     * их глобальное выключение действует на все экземпляры: экземпляр пользуется ими, только
+     * если они включены и в argConfig, и в глобальных настройках.
+     */
+    public SmevTransformSpi(SmevTransformConfig argConfig) {
+        if (argConfig == null) {
+            throw new IllegalArgumentException("Config must not be null");
+        }
+        instanceConfig = argConfig;
+    }
     
     @Override
     protected String engineGetURI() {
@@ -113,8 +225,25 @@ public class SmevTransformSpi extends TransformSpi {
             OutputStream argOutput, Transform argTransform) throws IOException,
             CanonicalizationException, InvalidCanonicalizerException,
             TransformationException, ParserConfigurationException, SAXException {
-        
-        process(argInput.getOctetStream(), argOutput);
+            
+        SmevTransformConfig currentConfig = currentConfig();
+        if (isCacheable(currentConfig, argInput)) {
+            // Выходной поток закрывается так же, как в process().
+            try {
+                argOutput.write(transformCached(currentConfig, argInput.getBytes()));
+            } finally {
+                try {
+                    argOutput.close();
+                } catch (IOException e) {
+                    logger.warn("Can not close output stream.", e);
+                }
+            }
+        } else if (isDomInput(argInput)) {
+            process(currentConfig, null, argInput.getSubNode(), argInput.getExcludeNode(),
+                    argOutput);
+        } else {
+            process(currentConfig, getOctetStream(argInput), null, null, argOutput);
+        }
         XMLSignatureInput result = new XMLSignatureInput((byte[]) null);
         result.setOutputStream(argOutput);
         return result;
@@ -126,7 +255,7 @@ public class SmevTransformSpi extends TransformSpi {
             Transform argTransform) throws IOException, CanonicalizationException,
             InvalidCanonicalizerException, TransformationException,
             ParserConfigurationException, SAXException {
-        
+            
         return enginePerformTransform(argInput);
     }
     
@@ -135,31 +264,493 @@ public class SmevTransformSpi extends TransformSpi {
             throws IOException, CanonicalizationException,
             InvalidCanonicalizerException, TransformationException,
             ParserConfigurationException, SAXException {
+            
+        SmevTransformConfig currentConfig = currentConfig();
+        if (isCacheable(currentConfig, argInput)) {
+            return new XMLSignatureInput(transformCached(currentConfig, argInput.getBytes()));
+        }
+        boolean domInput = isDomInput(argInput);
+        if (currentConfig.isStreamingDigest() && !domInput) {
+            // Трансформация выполняется по мере того, как Santuario читает результат
+            // в поток дайджеста; результат целиком в памяти не хранится. Реализация всегда
+            // CURSOR, debug-лог не пишется (см. setStreamingDigest).
+            SmevTransformStats stats = new SmevTransformStats(Engine.CURSOR);
+            InputStream src = getOctetStream(argInput);
+            if (!listeners.isEmpty()) {
+                src = new CountingInputStream(src, stats);
+            }
+            // Контекст возвращается в пул, когда результат дочитан или закрыт.
+            SmevTransformContext context = contexts.acquire(currentConfig.isHardenedFactories());
+            context.getCursorTransformer().setPlans(activePlans(currentConfig));
+            return new XMLSignatureInput(new SmevTransformInputStream(src, context, stats));
+        }
+        
+        // Небольшой результат остаётся в heap, большой сбрасывается во временный файл,
+        // который Santuario читает через отображение в память.
+        InputStream src = domInput ? null : getOctetStream(argInput);
+        SmevSpillOutputStream result = new SmevSpillOutputStream(
+                currentConfig.getSpillThreshold(), currentConfig.getSpillDirectory());
+        boolean completed = false;
+        try {
+            if (domInput) {
+                process(currentConfig, null, argInput.getSubNode(), argInput.getExcludeNode(),
+                        result);
+            } else {
+                process(currentConfig, src, null, null, result);
+            }
+            XMLSignatureInput output = new XMLSignatureInput(result.getInputStream());
+            completed = true;
+            return output;
+        } finally {
+            // Временный файл неудавшейся трансформации удаляется сразу, не дожидаясь Cleaner.
+            if (!completed) {
+                result.discard();
+            }
+        }
+    }
+    
+    /**
+     * Реализация трансформации.
+     */
+    public enum Engine {
         
-        ByteArrayOutputStream result = new ByteArrayOutputStream();
-        process(argInput.getOctetStream(), result);
-        byte[] postTransformData = result.toByteArray();
+        /**
+         * Событийный StAX API (XMLEventReader/XMLEventWriter), исходная реализация. Каждый
+         * текстовый узел передаётся строкой (Characters.getData()), поэтому объём памяти на
+         * документ не ограничен сверху: он зависит от того, какими порциями парсер отдаёт текст.
+         */
+        EVENT,
         
-        return new XMLSignatureInput(postTransformData);
+        /**
+         * Курсорный StAX API (XMLStreamReader) без создания объекта на каждый узел документа,
+         * результат пишется в UTF-8 напрямую, минуя XMLStreamWriter. Результат побайтно
+         * совпадает с EVENT. Реализация по умолчанию.
+         *
+         * Текст читается из буфера парсера (getTextCharacters) и пишется блоками фиксированного
+         * размера, поэтому память на документ, кроме буфера парсера и таблицы префиксов, не
+         * зависит от длины текстовых узлов.
+         */
+        CURSOR
+    }
+    
+    /**
+     * Действующие настройки трансформации.
+     */
+    public static SmevTransformConfig getConfig() {
+        return config;
+    }
+    
+    /**
+     * Заменяет настройки трансформации целиком. Трансформации, начатые раньше, завершаются
+     * с прежними настройками. При выключении кэша или планов они очищаются, при смене
+     * защищённого режима контексты прежнего режима больше не используются.
+     */
+    public static synchronized void setConfig(SmevTransformConfig argConfig) {
+        if (argConfig == null) {
+            throw new IllegalArgumentException("Config must not be null");
+        }
+        SmevTransformConfig previous = config;
+        config = argConfig;
+        if (!argConfig.isCacheEnabled()) {
+            cache.clear();
+        }
+        if (!argConfig.isPlansEnabled()) {
+            plans.clear();
+        }
+        if (argConfig.isHardenedFactories() != previous.isHardenedFactories()) {
+            contexts.setHardened(argConfig.isHardenedFactories());
+        }
+    }
+    
+    public static Engine getEngine() {
+        return config.getEngine();
+    }
+    
+    public static synchronized void setEngine(Engine argEngine) {
+        setConfig(config.withEngine(argEngine));
+    }
+    
+    public static boolean isStreamingDigest() {
+        return config.isStreamingDigest();
+    }
+    
+    /**
+     * Включает потоковый режим enginePerformTransform(XMLSignatureInput): вместо массива байт
+     * возвращается поток, трансформация выполняется по мере его чтения. DigestValue не меняется.
+     *
+     * В этом режиме настройка {@link #setEngine(Engine)} не действует: поток строится только
+     * на реализации {@link Engine#CURSOR}, которая отдаёт результат порциями. Результат
+     * в debug-лог тоже не выводится, поскольку целиком он нигде не собирается; listeners
+     * оповещаются как обычно. Поддерево DOM, которое обходится без канонизации (см.
+     * {@link #process(Node, OutputStream)}), трансформируется, как в обычном режиме.
+     */
+    public static synchronized void setStreamingDigest(boolean argStreamingDigest) {
+        setConfig(config.withStreamingDigest(argStreamingDigest));
+    }
+    
+    public static boolean isCacheEnabled() {
+        return config.isCacheEnabled();
+    }
+    
+    /**
+     * Включает или выключает кэш результатов трансформации. При выключении кэш очищается.
+     */
+    public static synchronized void setCacheEnabled(boolean argEnabled) {
+        setConfig(config.withCacheEnabled(argEnabled));
+    }
+    
+    /**
+     * Кэш результатов трансформации: метрики попаданий и вытеснений, очистка.
+     */
+    public static SmevTransformCache getCache() {
+        return cache;
+    }
+    
+    public static boolean isPlansEnabled() {
+        return config.isPlansEnabled();
+    }
+    
+    /**
+     * Включает или выключает выученные планы трансформации. Планы действуют для реализации
+     * {@link Engine#CURSOR}, трансформации DOM и {@link SmevReferenceDigester}, но не для
+     * {@link Engine#EVENT}. При выключении планы удаляются.
+     */
+    public static synchronized void setPlansEnabled(boolean argEnabled) {
+        setConfig(config.withPlansEnabled(argEnabled));
+    }
+    
+    /**
+     * Выученные планы трансформации: метрики и очистка.
+     */
+    public static SmevTransformPlans getPlans() {
+        return plans;
+    }
+    
+    /**
+     * Планы для трансформации с настройками argConfig или null, если планы выключены в них или
+     * в глобальных настройках.
+     */
+    static SmevTransformPlans activePlans(SmevTransformConfig argConfig) {
+        return argConfig.isPlansEnabled() && config.isPlansEnabled() ? plans : null;
+    }
+    
+    public static boolean isHardenedFactories() {
+        return config.isHardenedFactories();
+    }
+    
+    /**
+     * Включает защищённый режим StAX-фабрик: DTD не обрабатываются, внешние сущности не
+     * загружаются. Документ с объявлениями сущностей, на которые он ссылается, в этом режиме
+     * не трансформируется; канонизированный документ, который передаёт Santuario, DTD не
+     * содержит. Контексты, созданные в прежнем режиме, больше не используются.
+     */
+    public static synchronized void setHardenedFactories(boolean argHardened) {
+        setConfig(config.withHardenedFactories(argHardened));
+    }
+    
+    /**
+     * Заполняет пул контекстов трансформации, создавая StAX-фабрики заранее.
+     *
+     * @return сколько контекстов создано
+     */
+    static int prefillContexts() {
+        return contexts.prefill();
+    }
+    
+    public static int getSpillThreshold() {
+        return config.getSpillThreshold();
+    }
+    
+    /**
+     * Задаёт, сколько байт результата enginePerformTransform(XMLSignatureInput) держать в heap;
+     * больший результат пишется во временный файл. Integer.MAX_VALUE - не использовать файлы.
+     */
+    public static synchronized void setSpillThreshold(int argBytes) {
+        setConfig(config.withSpillThreshold(argBytes));
+    }
+    
+    /**
+     * Задаёт каталог временных файлов результата; null - java.io.tmpdir.
+     */
+    public static synchronized void setSpillDirectory(File argDirectory) {
+        setConfig(config.withSpillDirectory(argDirectory));
+    }
+    
+    /**
+     * Выполняет трансформацию, передавая результат напрямую в argDigest, и возвращает дайджест.
+     * Результат трансформации в памяти не накапливается.
+     */
+    public byte[] digest(InputStream argSrc, MessageDigest argDigest)
+            throws TransformationException {
+        process(argSrc, new DigestingOutputStream(argDigest));
+        return argDigest.digest();
+    }
+    
+    /**
+     * Ограничивает объём результата, выводимого в debug-лог одной трансформацией.
+     */
+    public static synchronized void setDebugCaptureLimit(int argBytes) {
+        setConfig(config.withDebugCaptureLimit(argBytes));
+    }
+    
+    /**
+     * Выводить в debug-лог результат только каждой argRate-й трансформации.
+     */
+    public static synchronized void setDebugSampleRate(int argRate) {
+        setConfig(config.withDebugSampleRate(argRate));
+    }
+    
+    public static void addListener(SmevTransformListener argListener) {
+        if (argListener == null) {
+            throw new IllegalArgumentException("Listener must not be null");
+        }
+        listeners.add(argListener);
+    }
+    
+    public static void removeListener(SmevTransformListener argListener) {
+        listeners.remove(argListener);
     }
     
     public void process(InputStream argSrc, OutputStream argDst) throws TransformationException {
+        process(currentConfig(), argSrc, null, null, argDst);
+    }
+    
+    /**
+     * Настройки экземпляра или, если они не заданы, глобальные.
+     */
+    private SmevTransformConfig currentConfig() {
+        return instanceConfig != null ? instanceConfig : config;
+    }
+    
+    /**
+     * Трансформация потока (argSrc) или поддерева DOM (argNode) с заданными настройками:
+     * контекст, счётчики, listeners, debug-лог. Поддерево DOM должно удовлетворять
+     * {@link SmevDomTransformer#isSplitFree(Node, Node)}; оно обходится реализацией
+     * {@link Engine#CURSOR} независимо от настроек.
+     *
+     * @param argExcludeNode поддерево argNode, которое не попадает в результат, или null
+     * @return счётчики трансформации
+     */
+    private SmevTransformStats process(SmevTransformConfig currentConfig, InputStream argSrc,
+            Node argNode, Node argExcludeNode, OutputStream argDst)
+            throws TransformationException {
+            
+        Engine currentEngine = argNode != null ? Engine.CURSOR : currentConfig.getEngine();
+        SmevTransformStats stats = new SmevTransformStats(currentEngine);
+        boolean instrumented = !listeners.isEmpty();
         
+        InputStream src = instrumented && argSrc != null ? new CountingInputStream(argSrc, stats)
+                : argSrc;
         DebugOutputStream debugStream = null;
-        
-        Stack<List<Namespace>> prefixMappingStack = new Stack<List<Namespace>>();
-        int prefixCnt = 1;
-        XMLEventReader src = null;
-        XMLEventWriter dst = null;
+        OutputStream dst = argDst;
+        if (logger.isDebugEnabled() && isDebugSampled(currentConfig)) {
+            debugStream = new DebugOutputStream(argDst, currentConfig.getDebugCaptureLimit());
+            dst = debugStream;
+        }
+        if (instrumented) {
+            dst = new CountingOutputStream(dst, stats);
+        }
+        SmevTransformContext context = contexts.acquire(currentConfig.isHardenedFactories());
+        stats.setHardened(context.isHardened());
+        long startTime = System.nanoTime();
         try {
-            src = inputFactory.get().createXMLEventReader(argSrc, ENCODING_UTF_8);
-            if (logger.isDebugEnabled()) {
-                debugStream = new DebugOutputStream(argDst);
-                dst = outputFactory.get().createXMLEventWriter(debugStream, ENCODING_UTF_8);
+            if (argNode != null) {
+                SmevDomTransformer transformer = context.getDomTransformer();
+                transformer.setStats(stats);
+                transformer.setPlans(activePlans(currentConfig));
+                transformer.process(argNode, argExcludeNode, dst);
+            } else if (currentEngine == Engine.CURSOR) {
+                SmevCursorTransformer transformer = context.getCursorTransformer();
+                transformer.setStats(stats);
+                transformer.setPlans(activePlans(currentConfig));
+                transformer.process(src, dst);
             } else {
-                dst = outputFactory.get().createXMLEventWriter(argDst, ENCODING_UTF_8);
+                processEvents(context, src, dst, stats);
+            }
+            stats.setDurationNanos(System.nanoTime() - startTime);
+            if (instrumented) {
+                transformCompleted(stats);
+            }
+        } catch (TransformationException e) {
+            stats.setDurationNanos(System.nanoTime() - startTime);
+            transformFailed(stats, e);
+            throw e;
+        } catch (RuntimeException e) {
+            stats.setDurationNanos(System.nanoTime() - startTime);
+            transformFailed(stats, e);
+            throw e;
+        } finally {
+            context.release();
+            if (argSrc != null) {
+                try {
+                    argSrc.close();
+                } catch (IOException e) {
+                    logger.warn("Can not close input stream.", e);
+                }
+            }
+            try {
+                argDst.close();
+            } catch (IOException e) {
+                logger.warn("Can not close output stream.", e);
             }
-            XMLEventFactory factory = eventFactory.get();
+            
+            if (debugStream != null) {
+                byte[] collectedData = debugStream.getCollectedData();
+                try {
+                    String contentAfterCanonizationAndTransforms =
+                            new String(collectedData, ENCODING_UTF_8);
+                    logger.debug("Content after canonization (" +
+                            collectedData.length + " of " +
+                            debugStream.getTotalCount() + " bytes): " +
+                            contentAfterCanonizationAndTransforms);
+                } catch (UnsupportedEncodingException e) {
+                    logger.warn("Can not decode content after canonization.", e);
+                }
+            }
+        }
+        return stats;
+    }
+    
+    /**
+     * Выполняет трансформацию поддерева DOM (элемента или документа). Результат совпадает с
+     * результатом трансформации его канонической формы (inclusive c14n без комментариев).
+     * Поддерево обходится напрямую, без канонизации и разбора, если результат его текста не
+     * зависит от нарезки (см. {@link SmevDomTransformer}); иначе оно канонизируется, как это
+     * делает Santuario, и результат канонизации трансформируется как поток.
+     */
+    public void process(Node argNode, OutputStream argDst) throws TransformationException {
+        if (argNode == null) {
+            throw new IllegalArgumentException("Node must not be null");
+        }
+        if (SmevDomTransformer.isSplitFree(argNode, null)) {
+            process(currentConfig(), null, argNode, null, argDst);
+            return;
+        }
+        InputStream src;
+        try {
+            src = getOctetStream(new XMLSignatureInput(argNode));
+        } catch (IOException e) {
+            throw transformationException(e);
+        } catch (CanonicalizationException e) {
+            throw transformationException(e);
+        }
+        process(src, argDst);
+    }
+    
+    /**
+     * Поддерево DOM, которое можно трансформировать без канонизации и разбора.
+     */
+    private static boolean isDomInput(XMLSignatureInput argInput) {
+        return argInput.isElement()
+                && SmevDomTransformer.isSplitFree(argInput.getSubNode(), argInput.getExcludeNode());
+    }
+    
+    /**
+     * Входные данные трансформации в виде потока байт. Узлы DOM канонизирует Santuario
+     * (inclusive c14n), после чего они трансформируются так же, как переданные байтами.
+     */
+    private static InputStream getOctetStream(XMLSignatureInput argInput) throws IOException,
+            CanonicalizationException {
+        if (argInput.isOctetStream()) {
+            return argInput.getOctetStream();
+        }
+        return new ByteArrayInputStream(argInput.getBytes());
+    }
+    
+    private static TransformationException transformationException(Exception e) {
+        Object exArgs[] = {e.getMessage()};
+        return new TransformationException(
+                "Can not perform transformation " + ALGORITHM_URN, exArgs, e);
+    }
+    
+    /**
+     * Кэшируются только входные данные, уже находящиеся в памяти массивом (как правило, результат
+     * предшествующей канонизации): ради ключа кэша большой поток в heap не читается.
+     */
+    private static boolean isCacheable(SmevTransformConfig argConfig, XMLSignatureInput argInput)
+            throws IOException {
+        return argConfig.isCacheEnabled() && config.isCacheEnabled() && argInput.isByteArray()
+                && cache.accepts(argInput.getBytes().length);
+    }
+    
+    /**
+     * Результат из кэша или трансформация с сохранением результата в кэш. Попадание, как и
+     * трансформация, оповещает listeners (с {@link SmevTransformStats#isCached()}); результат,
+     * полученный в обычном режиме StAX-фабрик, в защищённом режиме не используется.
+     */
+    private byte[] transformCached(SmevTransformConfig argConfig, byte[] argInput)
+            throws TransformationException {
+        long startTime = System.nanoTime();
+        SmevTransformCache.Entry entry = cache.get(argInput, argConfig.isHardenedFactories());
+        if (entry != null) {
+            if (!listeners.isEmpty()) {
+                SmevTransformStats stats = entry.newStats(argConfig.getEngine());
+                stats.setDurationNanos(System.nanoTime() - startTime);
+                transformCompleted(stats);
+            }
+            return entry.getOutput();
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        SmevTransformStats stats = process(argConfig, new ByteArrayInputStream(argInput), null,
+                null, output);
+        byte[] result = output.toByteArray();
+        cache.put(argInput, result, stats);
+        return result;
+    }
+    
+    /**
+     * Контекст трансформации из общего пула; возвращается в пул методом
+     * {@link SmevTransformContext#release()}.
+     */
+    static SmevTransformContext acquireContext() {
+        return contexts.acquire();
+    }
+    
+    /**
+     * Оповещает listeners об успешной трансформации.
+     */
+    static void transformCompleted(SmevTransformStats argStats) {
+        for (SmevTransformListener listener : listeners) {
+            try {
+                listener.transformCompleted(argStats);
+            } catch (RuntimeException e) {
+                logger.warn("Transform listener failed", e);
+            }
+        }
+    }
+    
+    /**
+     * Оповещает listeners о трансформации, прерванной ошибкой.
+     */
+    static void transformFailed(SmevTransformStats argStats, Exception argError) {
+        for (SmevTransformListener listener : listeners) {
+            try {
+                listener.transformFailed(argStats, argError);
+            } catch (RuntimeException e) {
+                logger.warn("Transform listener failed", e);
+            }
+        }
+    }
+    
+    private static boolean isDebugSampled(SmevTransformConfig argConfig) {
+        int rate = argConfig.getDebugSampleRate();
+        return rate <= 1 || debugSampleCounter.getAndIncrement() % rate == 0;
+    }
+    
+    private void processEvents(SmevTransformContext argContext, InputStream argSrc,
+            OutputStream argDst, SmevTransformStats argStats) throws TransformationException {
+            
+        SmevNamespaceTable namespaces = argContext.getNamespaces();
+        XMLEventReader src = null;
+        XMLEventWriter dst = null;
+        try {
+            src = argContext.getInputFactory().createXMLEventReader(argSrc, ENCODING_UTF_8);
+            // Текст пишется в XMLStreamWriter напрямую, остальное - через XMLEventWriter
+            // поверх него.
+            XMLStreamWriter textDst =
+                    argContext.getOutputFactory().createXMLStreamWriter(argDst, ENCODING_UTF_8);
+            dst = argContext.getOutputFactory().createXMLEventWriter(new StAXResult(textDst));
+            XMLEventFactory factory = argContext.getEventFactory();
             
             while (src.hasNext()) {
                 XMLEvent event = src.nextEvent();
@@ -167,23 +758,23 @@ public class SmevTransformSpi extends TransformSpi {
                 if (event.isCharacters()) {
                     String data = event.asCharacters().getData();
                     // Отсекаем возвраты каретки и пробельные строки.
-                    if (!data.trim().isEmpty()) {
-                        dst.add(event);
+                    if (!isWhitespace(data)) {
+                        textDst.writeCharacters(data);
+                    } else {
+                        argStats.whitespaceDropped();
                     }
                     continue;
                 } else if (event.isStartElement()) {
-                    List<Namespace> myPrefixMappings = new LinkedList<Namespace>();
-                    prefixMappingStack.push(myPrefixMappings);
+                    namespaces.pushScope();
                     
                     // Обработка элемента: NS prefix rewriting.
                     // N.B. Элементы в unqualified form не поддерживаются.
                     StartElement srcEvent = (StartElement) event;
                     String nsURI = srcEvent.getName().getNamespaceURI();
-                    String prefix = findPrefix(nsURI, prefixMappingStack);
+                    String prefix = namespaces.findPrefix(nsURI);
                     
                     if (prefix == null) {
-                        prefix = NS_PREFIX + String.valueOf(prefixCnt++);
-                        myPrefixMappings.add(factory.createNamespace(prefix, nsURI));
+                        prefix = namespaces.declarePrefix(nsURI);
                     }
                     StartElement dstEvent = factory.createStartElement(
                             prefix, nsURI, srcEvent.getName().getLocalPart());
@@ -199,6 +790,7 @@ public class SmevTransformSpi extends TransformSpi {
                     }
                     // Сортировка атрибутов по алфавиту.
                     Collections.sort(srcAttributeList, attributeSortingComparator);
+                    argStats.elementProcessed(srcAttributeList.size());
                     
                     // Обработка префиксов. Аналогична обработке префиксов элементов,
                     // за исключением того, что у атрибут может не иметь namespace.
@@ -210,11 +802,9 @@ public class SmevTransformSpi extends TransformSpi {
                         String attributePrefix = null;
                         Attribute dstAttribute = null;
                         if (attributeNsURI != null && !"".equals(attributeNsURI)) {
-                            attributePrefix = findPrefix(attributeNsURI, prefixMappingStack);
+                            attributePrefix = namespaces.findPrefix(attributeNsURI);
                             if (attributePrefix == null) {
-                                attributePrefix = NS_PREFIX + String.valueOf(prefixCnt++);
-                                myPrefixMappings.add(factory.createNamespace(
-                                        attributePrefix, attributeNsURI));
+                                attributePrefix = namespaces.declarePrefix(attributeNsURI);
                             }
                             dstAttribute = factory.createAttribute(
                                     attributePrefix, attributeNsURI, attributeLocalName, value);
@@ -228,8 +818,9 @@ public class SmevTransformSpi extends TransformSpi {
                     // Их порядок детерминирован, т.к. перед мэппингом атрибуты 
                     // были отсортированы.
                     // Поэтому дополнительной сотрировки здесь не нужно.
-                    for (Namespace mapping : myPrefixMappings) {
-                        dst.add(mapping);
+                    for (int i = namespaces.scopeStart(); i < namespaces.size(); i++) {
+                        dst.add(factory.createNamespace(
+                                namespaces.getPrefix(i), namespaces.getURI(i)));
                     }
                     
                     // Вывести атрибуты. 
@@ -245,22 +836,22 @@ public class SmevTransformSpi extends TransformSpi {
                     continue;
                 } else if (event.isEndElement()) {
                     // Гарантируем, что empty tags запишутся в форме <a></a>, а не в форме <a/>.
-                    dst.add(eventFactory.get().createSpace(""));
+                    dst.add(factory.createSpace(""));
                     
                     // NS prefix rewriting
                     EndElement srcEvent = (EndElement) event;
                     String nsURI = srcEvent.getName().getNamespaceURI();
-                    String prefix = findPrefix(nsURI, prefixMappingStack);
+                    String prefix = namespaces.findPrefix(nsURI);
                     if (prefix == null) {
                         throw new TransformationException(
                                 "EndElement: prefix mapping is not found for namespace " + nsURI);
                     }
                     
-                    EndElement dstEvent = eventFactory.get().
+                    EndElement dstEvent = factory.
                             createEndElement(prefix, nsURI, srcEvent.getName().getLocalPart());
                     dst.add(dstEvent);
                     
-                    prefixMappingStack.pop();
+                    namespaces.popScope();
                     
                     continue;
                 } else if (event.isAttribute()) {
@@ -276,6 +867,7 @@ public class SmevTransformSpi extends TransformSpi {
             throw new TransformationException(
                     "Can not perform transformation " + ALGORITHM_URN, exArgs, e);
         } finally {
+            argStats.setNamespaceRewrites(namespaces.declaredCount());
             if (src != null) {
                 try {
                     src.close();
@@ -290,43 +882,19 @@ public class SmevTransformSpi extends TransformSpi {
                     logger.warn("Can not close XMLEventWriter", e);
                 }
             }
-            try {
-                argSrc.close();
-            } catch (IOException e) {
-                logger.warn("Can not close input stream.", e);
-            }
-            try {
-                argDst.close();
-            } catch (IOException e) {
-                logger.warn("Can not close output stream.", e);
-            }
-            
-            if (logger.isDebugEnabled()) {
-                try {
-                    String contentAfterCanonizationAndTransforms =
-                            new String(debugStream.getCollectedData(), "UTF-8");
-                    logger.debug("Content after canonization: " +
-                            contentAfterCanonizationAndTransforms);
-                } catch (UnsupportedEncodingException e) {
-                    e.printStackTrace();
-                }
-            }
         }
     }
     
-    private String findPrefix(String argNamespaceURI, Stack<List<Namespace>> argMappingStack) {
-        if (argNamespaceURI == null) {
-            throw new IllegalArgumentException("No namespace элементы не поддерживаются.");
-        }
-        
-        for (List<Namespace> elementMappingList : argMappingStack) {
-            for (Namespace mapping : elementMappingList) {
-                if (argNamespaceURI.equals(mapping.getNamespaceURI())) {
-                    return mapping.getPrefix();
-                }
+    /**
+     * То же, что data.trim().isEmpty(), без создания строки.
+     */
+    private static boolean isWhitespace(String argData) {
+        for (int i = 0, length = argData.length(); i < length; i++) {
+            if (argData.charAt(i) > ' ') {
+                return false;
             }
         }
-        return null;
+        return true;
     }
     
     private static class AttributeSortingComparator implements Comparator<Attribute> {
@@ -359,44 +927,140 @@ public class SmevTransformSpi extends TransformSpi {
         }
     }
     
+    /**
+     * Копирует в память первые limit байт результата для debug-лога; остальное только считает.
+     */
     private static class DebugOutputStream extends OutputStream {
         
-        private ByteArrayOutputStream collector = new ByteArrayOutputStream();
-        private OutputStream wrappedStream;
+        private final ByteArrayOutputStream collector;
+        private final OutputStream wrappedStream;
+        private final int limit;
+        private long totalCount;
         
-        public DebugOutputStream(OutputStream arg) {
+        public DebugOutputStream(OutputStream arg, int argLimit) {
             wrappedStream = arg;
+            limit = Math.max(argLimit, 0);
+            collector = new ByteArrayOutputStream(Math.min(limit, 8192));
         }
         
         public byte[] getCollectedData() {
-            try {
-                collector.flush();
-            } catch (IOException e) {
-            }
             return collector.toByteArray();
         }
         
+        public long getTotalCount() {
+            return totalCount;
+        }
+        
         @Override
         public void write(int b) throws IOException {
-            collector.write(b);
+            if (collector.size() < limit) {
+                collector.write(b);
+            }
+            totalCount++;
             wrappedStream.write(b);
         }
         
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int captured = Math.min(len, limit - collector.size());
+            if (captured > 0) {
+                collector.write(b, off, captured);
+            }
+            totalCount += len;
+            wrappedStream.write(b, off, len);
+        }
+        
         @Override
         public void close() throws IOException {
-            collector.close();
             wrappedStream.close();
-            super.close();
         }
         
         @Override
         public void flush() throws IOException {
-            collector.flush();
             wrappedStream.flush();
         }
         
     }
     
+    private static class CountingInputStream extends FilterInputStream {
+        
+        private final SmevTransformStats stats;
+        
+        public CountingInputStream(InputStream arg, SmevTransformStats argStats) {
+            super(arg);
+            stats = argStats;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result != -1) {
+                stats.addBytesIn(1);
+            }
+            return result;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int result = super.read(b, off, len);
+            if (result > 0) {
+                stats.addBytesIn(result);
+            }
+            return result;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            long result = super.skip(n);
+            stats.addBytesIn(result);
+            return result;
+        }
+        
+    }
+    
+    static class CountingOutputStream extends FilterOutputStream {
+        
+        private final SmevTransformStats stats;
+        
+        public CountingOutputStream(OutputStream arg, SmevTransformStats argStats) {
+            super(arg);
+            stats = argStats;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            stats.addBytesOut(1);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            stats.addBytesOut(len);
+        }
+        
+    }
+    
+    static class DigestingOutputStream extends OutputStream {
+        
+        private final MessageDigest digest;
+        
+        public DigestingOutputStream(MessageDigest arg) {
+            digest = arg;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            digest.update((byte) b);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            digest.update(b, off, len);
+        }
+        
+    }
+    
     public static void main(String[] args) throws IOException, CanonicalizationException,
             InvalidCanonicalizerException, TransformationException,
             ParserConfigurationException, SAXException, XMLSignatureException, TransformerConfigurationException,
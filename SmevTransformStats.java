@@ -0,0 +1,148 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+/**
+ * Счётчики одной трансформации "urn://smev-gov-ru/xmldsig/transform".
+ *
+ * Заполняется реализацией трансформации и передаётся {@link SmevTransformListener} по её
+ * завершении. Экземпляр не потокобезопасен и не должен сохраняться получателем.
+ */
+public final class SmevTransformStats {
+    
+    private final SmevTransformSpi.Engine engine;
+    private long bytesIn;
+    private long bytesOut;
+    private long elements;
+    private long attributes;
+    private long namespaceRewrites;
+    private long droppedWhitespace;
+    private long durationNanos;
+    private boolean cached;
+    private boolean hardened;
+    
+    SmevTransformStats(SmevTransformSpi.Engine argEngine) {
+        engine = argEngine;
+    }
+    
+    /**
+     * Реализация, выполнившая трансформацию.
+     */
+    public SmevTransformSpi.Engine getEngine() {
+        return engine;
+    }
+    
+    /**
+     * Результат взят из кэша ({@link SmevTransformSpi#setCacheEnabled(boolean)}). Объём и
+     * состав документа в этом случае - как у трансформации, заполнившей кэш, а длительность -
+     * время обращения к кэшу.
+     */
+    public boolean isCached() {
+        return cached;
+    }
+    
+    /**
+     * Прочитано байт входного документа.
+     */
+    public long getBytesIn() {
+        return bytesIn;
+    }
+    
+    /**
+     * Записано байт результата.
+     */
+    public long getBytesOut() {
+        return bytesOut;
+    }
+    
+    /**
+     * Обработано элементов.
+     */
+    public long getElements() {
+        return elements;
+    }
+    
+    /**
+     * Обработано атрибутов.
+     */
+    public long getAttributes() {
+        return attributes;
+    }
+    
+    /**
+     * Объявлено префиксов nsN.
+     */
+    public long getNamespaceRewrites() {
+        return namespaceRewrites;
+    }
+    
+    /**
+     * Отброшено пробельных текстовых узлов.
+     */
+    public long getDroppedWhitespace() {
+        return droppedWhitespace;
+    }
+    
+    /**
+     * Длительность трансформации, нс.
+     */
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+    
+    void addBytesIn(long argCount) {
+        bytesIn += argCount;
+    }
+    
+    void addBytesOut(long argCount) {
+        bytesOut += argCount;
+    }
+    
+    void elementProcessed(int argAttributeCount) {
+        elements++;
+        attributes += argAttributeCount;
+    }
+    
+    void addElements(long argElements, long argAttributes) {
+        elements += argElements;
+        attributes += argAttributes;
+    }
+    
+    void whitespaceDropped() {
+        droppedWhitespace++;
+    }
+    
+    void setDroppedWhitespace(long argCount) {
+        droppedWhitespace = argCount;
+    }
+    
+    void setNamespaceRewrites(long argCount) {
+        namespaceRewrites = argCount;
+    }
+    
+    void setDurationNanos(long argNanos) {
+        durationNanos = argNanos;
+    }
+    
+    void setCached(boolean argCached) {
+        cached = argCached;
+    }
+    
+    /**
+     * Документ разобран в защищённом режиме StAX-фабрик; нужно кэшу результатов.
+     */
+    boolean isHardened() {
+        return hardened;
+    }
+    
+    void setHardened(boolean argHardened) {
+        hardened = argHardened;
+    }
+    
+    @Override
+    public String toString() {
+        return "SmevTransformStats [engine=" + engine + ", bytesIn=" + bytesIn + ", bytesOut="
+                + bytesOut + ", elements=" + elements + ", attributes=" + attributes
+                + ", namespaceRewrites=" + namespaceRewrites + ", droppedWhitespace="
+                + droppedWhitespace + ", durationNanos=" + durationNanos + ", cached=" + cached
+                + "]";
+    }
+}
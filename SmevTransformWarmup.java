@@ -0,0 +1,367 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.xml.security.exceptions.AlgorithmAlreadyRegisteredException;
+import org.apache.xml.security.signature.XMLSignatureInput;
+import org.apache.xml.security.transforms.InvalidTransformException;
+import org.apache.xml.security.transforms.Transform;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
+/**
+ * Подготовка процесса к трансформации "urn://smev-gov-ru/xmldsig/transform" при старте, чтобы
+ * первые запросы после развёртывания или масштабирования не платили за инициализацию.
+ *
+ * {@link #run(SmevTransformConfig)} один раз на процесс инициализирует Santuario и регистрирует
+ * {@link SmevTransformSpi} под {@link SmevTransformSpi#ALGORITHM_URN} и создаёт StAX-фабрики
+ * заранее, заполняя пул контекстов трансформации. Затем, если заданы конверты-образцы, прогоняет
+ * их заданное число раз через трансформацию потока, enginePerformTransform и трансформацию DOM
+ * с переданными настройками: JIT компилирует горячие методы выбранной реализации, а при
+ * включённых планах они выучиваются для типов сообщений образцов. Результаты повторов
+ * сравниваются с первым, так что расхождение реализаций обнаруживается до приёма трафика.
+ *
+ * Глобальные настройки ({@link SmevTransformSpi#setConfig(SmevTransformConfig)}) прогрев не
+ * меняет: защищённый режим StAX-фабрик и остальные настройки приложение задаёт само, до прогрева.
+ * Пул контекстов заполняется, только если защищённый режим переданных настроек совпадает
+ * с глобальным - иначе созданные контексты не пригодились бы.
+ *
+ * Coalescing StAX-фабрик не включается: трансформация отбрасывает пробельные текстовые события,
+ * и объединение текста изменило бы результат, а с ним DigestValue подписей контрагентов.
+ *
+ * Итог прогрева доступен через {@link #isReady()} и {@link #getReport()} - например, для
+ * readiness probe. Трансформации прогрева, как и обычные, передаются listeners.
+ */
+public final class SmevTransformWarmup {
+    
+    /**
+     * Конверт-образец, поставляемый вместе с классом: ресурс в том же пакете, что и класс.
+     * Если при сборке ресурс не попал в classpath, {@link #addBundledSample()} выбрасывает
+     * FileNotFoundException.
+     */
+    public static final String BUNDLED_SAMPLE = "SendRequestRequestNoAttach.xml";
+    
+    /**
+     * Число прогонов каждого образца по умолчанию.
+     */
+    public static final int DEFAULT_ITERATIONS = 200;
+    
+    private static Logger logger = LoggerFactory.getLogger(SmevTransformWarmup.class);
+    
+    private static boolean registered;
+    private static volatile Report report;
+    
+    private final List<byte[]> samples = new ArrayList<byte[]>();
+    private int iterations = DEFAULT_ITERATIONS;
+    
+    /**
+     * Добавляет конверт-образец (или подписываемый фрагмент).
+     */
+    public void addSample(byte[] argSample) {
+        if (argSample == null) {
+            throw new IllegalArgumentException("Sample must not be null");
+        }
+        samples.add(argSample);
+    }
+    
+    /**
+     * Добавляет образцы из файлов *.xml каталога в порядке имён.
+     */
+    public void addSamples(File argDirectory) throws IOException {
+        File[] files = argDirectory.listFiles(new FilenameFilter() {
+            
+            @Override
+            public boolean accept(File argDir, String argName) {
+                return argName.endsWith(".xml");
+            }
+        });
+        if (files == null) {
+            throw new FileNotFoundException(argDirectory.getPath());
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            InputStream in = new FileInputStream(file);
+            try {
+                addSample(read(in));
+            } finally {
+                in.close();
+            }
+        }
+    }
+    
+    /**
+     * Добавляет образец {@link #BUNDLED_SAMPLE}.
+     */
+    public void addBundledSample() throws IOException {
+        InputStream in = SmevTransformWarmup.class.getResourceAsStream(BUNDLED_SAMPLE);
+        if (in == null) {
+            throw new FileNotFoundException("Bundled warm-up sample "
+                    + SmevTransformWarmup.class.getPackage().getName().replace('.', '/') + "/"
+                    + BUNDLED_SAMPLE + " is not on the classpath");
+        }
+        try {
+            addSample(read(in));
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Сколько раз прогонять каждый образец.
+     */
+    public void setIterations(int argIterations) {
+        if (argIterations < 1) {
+            throw new IllegalArgumentException("Iterations must be positive");
+        }
+        iterations = argIterations;
+    }
+    
+    /**
+     * Выполняет прогрев с действующими глобальными настройками.
+     */
+    public Report run() {
+        return run(SmevTransformSpi.getConfig());
+    }
+    
+    /**
+     * Выполняет прогрев в текущем потоке: образцы трансформируются с настройками argConfig,
+     * глобальные настройки не меняются. Ошибки не выбрасываются, а попадают в отчёт.
+     */
+    public Report run(SmevTransformConfig argConfig) {
+        if (argConfig == null) {
+            throw new IllegalArgumentException("Config must not be null");
+        }
+        long startTime = System.nanoTime();
+        Report result = new Report(samples.size());
+        try {
+            registerTransform();
+            if (argConfig.isHardenedFactories() == SmevTransformSpi.isHardenedFactories()) {
+                result.contexts = SmevTransformSpi.prefillContexts();
+            }
+            replay(argConfig, result);
+        } catch (Exception e) {
+            result.failed(e);
+        }
+        result.durationNanos = System.nanoTime() - startTime;
+        result.planSteps = SmevTransformSpi.getPlans().getStepCount();
+        report = result;
+        if (result.isReady()) {
+            logger.info("Transformation warm-up completed: {}", result);
+        } else {
+            logger.warn("Transformation warm-up failed: " + result, result.getError());
+        }
+        return result;
+    }
+    
+    /**
+     * Инициализирует Santuario и регистрирует {@link SmevTransformSpi}. Повторный вызов ничего
+     * не делает. Если под {@link SmevTransformSpi#ALGORITHM_URN} уже зарегистрирована
+     * трансформация, она остаётся зарегистрированной.
+     */
+    public static synchronized void registerTransform()
+            throws ClassNotFoundException, InvalidTransformException {
+        if (registered) {
+            return;
+        }
+        org.apache.xml.security.Init.init();
+        try {
+            Transform.register(SmevTransformSpi.ALGORITHM_URN, SmevTransformSpi.class);
+        } catch (AlgorithmAlreadyRegisteredException e) {
+            logger.info("Transformation {} is already registered", SmevTransformSpi.ALGORITHM_URN);
+        }
+        registered = true;
+    }
+    
+    /**
+     * Завершён ли прогрев без ошибок.
+     */
+    public static boolean isReady() {
+        Report current = report;
+        return current != null && current.isReady();
+    }
+    
+    /**
+     * Отчёт последнего прогрева или null, если прогрева не было.
+     */
+    public static Report getReport() {
+        return report;
+    }
+    
+    /**
+     * Фабрика DOM для разбора конвертов: пространства имён включены, DOCTYPE запрещён, внешние
+     * сущности и XInclude не обрабатываются.
+     */
+    public static DocumentBuilderFactory newDocumentBuilderFactory()
+            throws ParserConfigurationException {
+        DocumentBuilderFactory result = DocumentBuilderFactory.newInstance();
+        result.setNamespaceAware(true);
+        result.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        result.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        result.setFeature("http://xml.org/sax/features/external-general-entities", false);
+        result.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+        result.setXIncludeAware(false);
+        result.setExpandEntityReferences(false);
+        return result;
+    }
+    
+    private void replay(SmevTransformConfig argConfig, Report argReport)
+            throws ParserConfigurationException {
+        if (samples.isEmpty()) {
+            return;
+        }
+        SmevTransformSpi transform = new SmevTransformSpi(argConfig);
+        DocumentBuilder builder = newDocumentBuilderFactory().newDocumentBuilder();
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        byte[][] expected = new byte[samples.size()][];
+        byte[][] expectedDom = new byte[samples.size()][];
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            for (int i = 0; i < samples.size(); i++) {
+                byte[] sample = samples.get(i);
+                try {
+                    sink.reset();
+                    transform.process(new ByteArrayInputStream(sample), sink);
+                    expected[i] = check(argReport, expected[i], sink);
+                    
+                    sink.reset();
+                    transform.enginePerformTransform(new XMLSignatureInput(sample), sink, null);
+                    check(argReport, expected[i], sink);
+                    
+                    Document document = builder.parse(new ByteArrayInputStream(sample));
+                    sink.reset();
+                    transform.process(document, sink);
+                    expectedDom[i] = check(argReport, expectedDom[i], sink);
+                } catch (Exception e) {
+                    argReport.failed(e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Сравнивает результат с ожидаемым.
+     *
+     * @return ожидаемый результат: argExpected или, при первом прогоне, полученный
+     */
+    private static byte[] check(Report argReport, byte[] argExpected,
+            ByteArrayOutputStream argSink) {
+        argReport.transforms++;
+        byte[] actual = argSink.toByteArray();
+        if (argExpected == null) {
+            return actual;
+        }
+        if (!Arrays.equals(argExpected, actual)) {
+            argReport.failed(new IllegalStateException(
+                    "Transformation result differs from the first run"));
+        }
+        return argExpected;
+    }
+    
+    private static byte[] read(InputStream argIn) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = argIn.read(buffer)) != -1) {
+            result.write(buffer, 0, count);
+        }
+        return result.toByteArray();
+    }
+    
+    /**
+     * Итог прогрева.
+     */
+    public static final class Report {
+        
+        private final int samples;
+        private long transforms;
+        private long failures;
+        private Exception error;
+        private int contexts;
+        private int planSteps;
+        private long durationNanos;
+        
+        Report(int argSamples) {
+            samples = argSamples;
+        }
+        
+        void failed(Exception argError) {
+            failures++;
+            if (error == null) {
+                error = argError;
+            }
+        }
+        
+        /**
+         * Трансформация зарегистрирована, и все прогоны совпали с первым.
+         */
+        public boolean isReady() {
+            return failures == 0;
+        }
+        
+        public int getSamples() {
+            return samples;
+        }
+        
+        /**
+         * Выполнено трансформаций образцов.
+         */
+        public long getTransforms() {
+            return transforms;
+        }
+        
+        /**
+         * Ошибок и расхождений результатов.
+         */
+        public long getFailures() {
+            return failures;
+        }
+        
+        /**
+         * Первая ошибка или null.
+         */
+        public Exception getError() {
+            return error;
+        }
+        
+        /**
+         * Контекстов трансформации создано заранее.
+         */
+        public int getContexts() {
+            return contexts;
+        }
+        
+        /**
+         * Шагов в выученных планах после прогрева.
+         */
+        public int getPlanSteps() {
+            return planSteps;
+        }
+        
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+        
+        @Override
+        public String toString() {
+            return "Report [ready=" + isReady() + ", samples=" + samples + ", transforms="
+                    + transforms + ", failures=" + failures + ", contexts=" + contexts
+                    + ", planSteps=" + planSteps + ", durationMillis=" + durationNanos / 1000000
+                    + "]";
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Генератор конвертов СМЭВ для нагрузочных измерений трансформации
+ * "urn://smev-gov-ru/xmldsig/transform".
+ *
+ * За основу берётся конверт-образец (по умолчанию SendRequestRequestNoAttach.xml), содержимое
+ * MessagePrimaryContent заменяется сгенерированной нагрузкой заданного размера. Нагрузка состоит
+ * из одинаковых записей - цепочек вложенных элементов заданной глубины, - элементы которых
+ * распределены по заданному числу namespace и несут заданное число атрибутов, вперемешку
+ * с namespace и без. Часть namespace объявляется локально, как в реальных вендорских схемах,
+ * поэтому трансформации приходится переназначать префиксы. Результат детерминирован.
+ */
+final class SmevEnvelopeCorpus {
+    
+    static final String DEFAULT_SEED = "SendRequestRequestNoAttach.xml";
+    
+    private static final String ENCODING_UTF_8 = "UTF-8";
+    private static final String CONTENT_START = "<ns2:MessagePrimaryContent>";
+    private static final String CONTENT_END = "</ns2:MessagePrimaryContent>";
+    private static final String NS_URI_BASE = "urn://x-artefacts-smev-gov-ru/bench/vendor/";
+    
+    private SmevEnvelopeCorpus() {
+    }
+    
+    /**
+     * Читает конверт-образец из файла.
+     */
+    static String readSeed(String argPath) throws IOException {
+        File file = new File(argPath);
+        ByteArrayOutputStream result = new ByteArrayOutputStream((int) file.length());
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                result.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return new String(result.toByteArray(), ENCODING_UTF_8);
+    }
+    
+    /**
+     * Генерирует конверт.
+     *
+     * @param argSeed конверт-образец, содержащий ns2:MessagePrimaryContent
+     * @param argPayloadSize размер нагрузки в байтах (не меньше)
+     * @param argDepth глубина вложенности элементов записи
+     * @param argNamespaceCount число различных namespace URI в нагрузке
+     * @param argAttributesPerElement число атрибутов у каждого элемента записи
+     */
+    static byte[] generate(String argSeed, int argPayloadSize, int argDepth,
+            int argNamespaceCount, int argAttributesPerElement) {
+        if (argDepth < 1 || argNamespaceCount < 1 || argAttributesPerElement < 0) {
+            throw new IllegalArgumentException("Depth and namespace count must be positive");
+        }
+        int start = argSeed.indexOf(CONTENT_START);
+        int end = argSeed.indexOf(CONTENT_END);
+        if (start < 0 || end < start) {
+            throw new IllegalArgumentException("Seed envelope has no " + CONTENT_START);
+        }
+        start += CONTENT_START.length();
+        
+        byte[] head = bytes(argSeed.substring(0, start));
+        byte[] tail = bytes(argSeed.substring(end));
+        ByteArrayOutputStream result = new ByteArrayOutputStream(
+                head.length + argPayloadSize + tail.length + 4096);
+        result.write(head, 0, head.length);
+        
+        int payloadStart = result.size();
+        byte[] open = bytes(payloadRoot(argNamespaceCount));
+        result.write(open, 0, open.length);
+        for (int record = 0; result.size() - payloadStart < argPayloadSize; record++) {
+            byte[] bytes = bytes(record(record, argDepth, argNamespaceCount,
+                    argAttributesPerElement));
+            result.write(bytes, 0, bytes.length);
+        }
+        byte[] close = bytes("\n</p0:Payload>");
+        result.write(close, 0, close.length);
+        
+        result.write(tail, 0, tail.length);
+        return result.toByteArray();
+    }
+    
+    private static String payloadRoot(int argNamespaceCount) {
+        StringBuilder result = new StringBuilder("<p0:Payload");
+        // Первая половина namespace объявляется на корне нагрузки, остальные - локально.
+        for (int i = 0; i < (argNamespaceCount + 1) / 2; i++) {
+            result.append(" xmlns:p").append(i).append("=\"").append(NS_URI_BASE).append(i)
+                    .append('"');
+        }
+        return result.append(" Id=\"PERSONAL_SIGNATURE\">").toString();
+    }
+    
+    private static String record(int argRecord, int argDepth, int argNamespaceCount,
+            int argAttributesPerElement) {
+        int declaredOnRoot = (argNamespaceCount + 1) / 2;
+        StringBuilder result = new StringBuilder(argDepth * 160);
+        for (int level = 0; level < argDepth; level++) {
+            int ns = (argRecord + level) % argNamespaceCount;
+            result.append('\n');
+            indent(result, level + 1);
+            result.append("<p").append(ns).append(":Level").append(level);
+            if (ns >= declaredOnRoot) {
+                result.append(" xmlns:p").append(ns).append("=\"").append(NS_URI_BASE).append(ns)
+                        .append('"');
+            }
+            for (int a = 0; a < argAttributesPerElement; a++) {
+                result.append(' ');
+                if (a % 2 == 1) {
+                    result.append('p').append(ns).append(':');
+                }
+                result.append("attr").append(argAttributesPerElement - a).append("=\"")
+                        .append(argRecord).append('-').append(a).append('"');
+            }
+            result.append('>');
+        }
+        result.append("Запись № ").append(argRecord).append(" &amp; данные");
+        for (int level = argDepth - 1; level >= 0; level--) {
+            int ns = (argRecord + level) % argNamespaceCount;
+            if (level < argDepth - 1) {
+                result.append('\n');
+                indent(result, level + 1);
+            }
+            result.append("</p").append(ns).append(":Level").append(level).append('>');
+        }
+        return result.toString();
+    }
+    
+    private static void indent(StringBuilder argBuilder, int argLevel) {
+        for (int i = 0; i < argLevel; i++) {
+            argBuilder.append("  ");
+        }
+    }
+    
+    private static byte[] bytes(String argText) {
+        try {
+            return argText.getBytes(ENCODING_UTF_8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
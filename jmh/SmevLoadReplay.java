@@ -0,0 +1,538 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.xml.security.algorithms.MessageDigestAlgorithm;
+import org.apache.xml.security.c14n.Canonicalizer;
+import org.apache.xml.security.signature.XMLSignature;
+import org.apache.xml.security.transforms.Transforms;
+import org.apache.xml.security.utils.Constants;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Нагрузочный прогон подписи и проверки подписи конвертов СМЭВ с трансформацией
+ * "urn://smev-gov-ru/xmldsig/transform" - для оценки производительности узлов шлюза на
+ * реальных конвертах без стенда.
+ *
+ * Конверты (*.xml каталога, например SendRequestRequestNoAttach.xml и его варианты) по кругу
+ * разбираются, подписывается первый элемент с атрибутом Id (ссылка с exc-c14n и трансформацией
+ * СМЭВ), подпись помещается в CallerInformationSystemSignature или рядом с подписываемым
+ * элементом, конверт сериализуется, разбирается заново и подпись проверяется. Ключ генерируется
+ * при запуске; алгоритмы задаются ключами - например, ГОСТ при подключённом провайдере.
+ *
+ * Операции выполняются заданным числом потоков (платформенных или виртуальных) в течение
+ * заданного времени после прогрева. При заданной интенсивности операции планируются равномерно,
+ * а задержка отсчитывается от запланированного момента, так что отставание от графика входит
+ * в перцентили. Отчёт: пропускная способность, перцентили задержки p50/p99/p999, объём
+ * выделенной памяти на операцию (только для платформенных потоков) и число и время сборок
+ * мусора за время измерения.
+ *
+ * <pre>
+ * java ... SmevLoadReplay &lt;каталог&gt; [--threads N] [--virtual] [--rate операций/с]
+ *     [--duration с] [--warmup с] [--signature-algorithm URI] [--digest-algorithm URI]
+ *     [--key-algorithm имя] [--key-size бит]
+ * </pre>
+ *
+ * Виртуальные потоки требуют Java 21.
+ */
+public final class SmevLoadReplay {
+    
+    private static final String ID_ATTRIBUTE = SmevReferenceDigester.DEFAULT_ID_ATTRIBUTE;
+    private static final String SIGNATURE_CONTAINER = "CallerInformationSystemSignature";
+    // Id добавляемой подписи: по нему она находится после разбора, среди подписей конверта.
+    private static final String SIGNATURE_ID = "SmevLoadReplaySignature";
+    
+    private final List<byte[]> envelopes;
+    private final int threads;
+    private final boolean virtual;
+    private final double rate;
+    private final String signatureAlgorithm;
+    private final String digestAlgorithm;
+    private final KeyPair keyPair;
+    
+    SmevLoadReplay(List<byte[]> argEnvelopes, int argThreads, boolean argVirtual, double argRate,
+            String argSignatureAlgorithm, String argDigestAlgorithm, KeyPair argKeyPair) {
+        envelopes = argEnvelopes;
+        threads = argThreads;
+        virtual = argVirtual;
+        rate = argRate;
+        signatureAlgorithm = argSignatureAlgorithm;
+        digestAlgorithm = argDigestAlgorithm;
+        keyPair = argKeyPair;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: SmevLoadReplay <directory> [--threads N] [--virtual]"
+                    + " [--rate ops/s] [--duration s] [--warmup s] [--signature-algorithm URI]"
+                    + " [--digest-algorithm URI] [--key-algorithm name] [--key-size bits]");
+            System.exit(2);
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean virtual = false;
+        double rate = 0;
+        int duration = 60;
+        int warmup = 10;
+        String signatureAlgorithm = XMLSignature.ALGO_ID_SIGNATURE_RSA_SHA256;
+        String digestAlgorithm = MessageDigestAlgorithm.ALGO_ID_DIGEST_SHA256;
+        String keyAlgorithm = "RSA";
+        int keySize = 2048;
+        for (int i = 1; i < args.length; i++) {
+            String option = args[i];
+            if ("--virtual".equals(option)) {
+                virtual = true;
+                continue;
+            }
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Option " + option + " requires a value");
+            }
+            String value = args[++i];
+            if ("--threads".equals(option)) {
+                threads = Integer.parseInt(value);
+            } else if ("--rate".equals(option)) {
+                rate = Double.parseDouble(value);
+            } else if ("--duration".equals(option)) {
+                duration = Integer.parseInt(value);
+            } else if ("--warmup".equals(option)) {
+                warmup = Integer.parseInt(value);
+            } else if ("--signature-algorithm".equals(option)) {
+                signatureAlgorithm = value;
+            } else if ("--digest-algorithm".equals(option)) {
+                digestAlgorithm = value;
+            } else if ("--key-algorithm".equals(option)) {
+                keyAlgorithm = value;
+            } else if ("--key-size".equals(option)) {
+                keySize = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+        
+        SmevTransformWarmup.registerTransform();
+        List<byte[]> envelopes = readEnvelopes(new File(args[0]));
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(keyAlgorithm);
+        generator.initialize(keySize);
+        SmevLoadReplay replay = new SmevLoadReplay(envelopes, Math.max(threads, 1), virtual, rate,
+                signatureAlgorithm, digestAlgorithm, generator.generateKeyPair());
+                
+        System.out.println("Envelopes: " + envelopes.size() + ", threads: " + threads
+                + (virtual ? " virtual" : " platform") + ", rate: "
+                + (rate > 0 ? rate + " ops/s" : "unbounded"));
+        if (warmup > 0) {
+            System.out.println("Warm-up: " + replay.run(TimeUnit.SECONDS.toNanos(warmup)));
+        }
+        SmevTransformMetrics metrics = new SmevTransformMetrics();
+        SmevTransformSpi.addListener(metrics);
+        Result result = replay.run(TimeUnit.SECONDS.toNanos(duration));
+        SmevTransformSpi.removeListener(metrics);
+        System.out.println("Measurement: " + result);
+        System.out.println("Transforms: " + metrics.getTransforms() + ", failures: "
+                + metrics.getFailures());
+        if (result.firstError != null) {
+            System.out.println("First error:");
+            result.firstError.printStackTrace(System.out);
+        }
+    }
+    
+    /**
+     * Выполняет операции в течение argDurationNanos и собирает результат.
+     */
+    Result run(long argDurationNanos) throws Exception {
+        ExecutorService executor = virtual ? newVirtualThreadExecutor()
+                : Executors.newFixedThreadPool(threads);
+        long[] gcBefore = gcTotals();
+        long start = System.nanoTime();
+        long deadline = start + argDurationNanos;
+        List<Worker> workers = new ArrayList<Worker>(threads);
+        try {
+            for (int i = 0; i < threads; i++) {
+                Worker worker = new Worker(i, start, deadline);
+                workers.add(worker);
+                executor.execute(worker);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        long elapsed = System.nanoTime() - start;
+        long[] gcAfter = gcTotals();
+        
+        Result result = new Result();
+        result.elapsedNanos = elapsed;
+        result.gcCount = gcAfter[0] - gcBefore[0];
+        result.gcMillis = gcAfter[1] - gcBefore[1];
+        result.allocatedBytes = 0;
+        result.latencies = new LatencyHistogram();
+        for (Worker worker : workers) {
+            result.latencies.add(worker.latencies);
+            result.errors += worker.errors;
+            if (result.firstError == null) {
+                result.firstError = worker.firstError;
+            }
+            if (worker.allocatedBytes < 0 || result.allocatedBytes < 0) {
+                result.allocatedBytes = -1;
+            } else {
+                result.allocatedBytes += worker.allocatedBytes;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Подписывает конверт, сериализует, разбирает и проверяет подпись.
+     */
+    private void signAndVerify(byte[] argEnvelope, DocumentBuilder argBuilder,
+            Transformer argSerializer) throws Exception {
+        Document document = argBuilder.parse(new ByteArrayInputStream(argEnvelope));
+        Element signed = findSigned(document.getDocumentElement());
+        if (signed == null) {
+            throw new IllegalArgumentException("Envelope has no element with " + ID_ATTRIBUTE);
+        }
+        signed.setIdAttributeNS(null, ID_ATTRIBUTE, true);
+        XMLSignature signature = new XMLSignature(document, "", signatureAlgorithm,
+                Canonicalizer.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+        Transforms transforms = new Transforms(document);
+        transforms.addTransform(Transforms.TRANSFORM_C14N_EXCL_OMIT_COMMENTS);
+        transforms.addTransform(SmevTransformSpi.ALGORITHM_URN);
+        signature.addDocument("#" + signed.getAttributeNS(null, ID_ATTRIBUTE), transforms,
+                digestAlgorithm);
+        signature.setId(SIGNATURE_ID);
+        Node container = findContainer(document.getDocumentElement());
+        if (container == null) {
+            container = signed.getParentNode();
+        }
+        Element signatureElement = signature.getElement();
+        container.appendChild(signatureElement);
+        signature.sign(keyPair.getPrivate());
+        
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream(argEnvelope.length * 2);
+        argSerializer.transform(new DOMSource(document), new StreamResult(serialized));
+        
+        Document received = argBuilder.parse(new ByteArrayInputStream(serialized.toByteArray()));
+        findSigned(received.getDocumentElement()).setIdAttributeNS(null, ID_ATTRIBUTE, true);
+        // Проверяется именно добавленная подпись, а не подпись, уже бывшая в конверте.
+        XMLSignature check = new XMLSignature(findSignature(received,
+                signatureElement.getAttributeNS(null, "Id")), "");
+        if (!check.checkSignatureValue(keyPair.getPublic())) {
+            throw new IllegalStateException("Signature is not valid");
+        }
+    }
+    
+    /**
+     * Элемент ds:Signature с заданным Id; он должен быть в документе ровно один.
+     */
+    private static Element findSignature(Document argDocument, String argId) {
+        NodeList signatures =
+                argDocument.getElementsByTagNameNS(Constants.SignatureSpecNS, "Signature");
+        Element result = null;
+        for (int i = 0; i < signatures.getLength(); i++) {
+            Element signature = (Element) signatures.item(i);
+            if (argId.equals(signature.getAttributeNS(null, "Id"))) {
+                if (result != null) {
+                    throw new IllegalStateException("Envelope has several signatures " + argId);
+                }
+                result = signature;
+            }
+        }
+        if (result == null) {
+            throw new IllegalStateException("Signature " + argId + " is lost after parsing");
+        }
+        return result;
+    }
+    
+    /**
+     * Первый в порядке документа элемент с атрибутом Id.
+     */
+    private static Element findSigned(Element argRoot) {
+        if (argRoot.hasAttributeNS(null, ID_ATTRIBUTE)) {
+            return argRoot;
+        }
+        NodeList all = argRoot.getElementsByTagName("*");
+        for (int i = 0; i < all.getLength(); i++) {
+            Element element = (Element) all.item(i);
+            if (element.hasAttributeNS(null, ID_ATTRIBUTE)) {
+                return element;
+            }
+        }
+        return null;
+    }
+    
+    private static Element findContainer(Element argRoot) {
+        NodeList containers = argRoot.getElementsByTagNameNS("*", SIGNATURE_CONTAINER);
+        return containers.getLength() > 0 ? (Element) containers.item(0) : null;
+    }
+    
+    private static List<byte[]> readEnvelopes(File argDirectory) throws IOException {
+        File[] files = argDirectory.listFiles(new FilenameFilter() {
+            
+            @Override
+            public boolean accept(File argDir, String argName) {
+                return argName.endsWith(".xml");
+            }
+        });
+        if (files == null || files.length == 0) {
+            throw new FileNotFoundException("No *.xml envelopes in " + argDirectory);
+        }
+        Arrays.sort(files);
+        List<byte[]> result = new ArrayList<byte[]>(files.length);
+        for (File file : files) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream((int) file.length());
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    content.write(buffer, 0, count);
+                }
+            } finally {
+                in.close();
+            }
+            result.add(content.toByteArray());
+        }
+        return result;
+    }
+    
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() через reflection, чтобы класс собирался
+     * и запускался на Java до 21 с платформенными потоками.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Virtual threads require Java 21", e);
+        } catch (Exception e) {
+            throw new IllegalStateException("Can not create virtual thread executor", e);
+        }
+    }
+    
+    /**
+     * Число и суммарное время сборок мусора, мс, с начала работы JVM.
+     */
+    private static long[] gcTotals() {
+        long[] result = new long[2];
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            result[0] += Math.max(collector.getCollectionCount(), 0);
+            result[1] += Math.max(collector.getCollectionTime(), 0);
+        }
+        return result;
+    }
+    
+    /**
+     * Выделено памяти текущим потоком, байт, или -1, если JVM этого не сообщает (в том числе для
+     * виртуальных потоков).
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        if (!threadBean.isThreadAllocatedMemorySupported()
+                || !threadBean.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    
+    /**
+     * Поток нагрузки: операции над конвертами, начиная со своего, с шагом в число потоков.
+     */
+    private class Worker implements Runnable {
+        
+        private final int index;
+        private final long start;
+        private final long deadline;
+        final LatencyHistogram latencies = new LatencyHistogram();
+        long errors;
+        Exception firstError;
+        long allocatedBytes = -1;
+        
+        Worker(int argIndex, long argStart, long argDeadline) {
+            index = argIndex;
+            start = argStart;
+            deadline = argDeadline;
+        }
+        
+        @Override
+        public void run() {
+            DocumentBuilder builder;
+            Transformer serializer;
+            try {
+                builder = SmevTransformWarmup.newDocumentBuilderFactory().newDocumentBuilder();
+                serializer = TransformerFactory.newInstance().newTransformer();
+            } catch (Exception e) {
+                errors++;
+                firstError = e;
+                return;
+            }
+            // Интервал между операциями одного потока и сдвиг потоков внутри интервала.
+            long period = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(threads) / rate) : 0;
+            long scheduled = start + period * index / threads;
+            long allocatedBefore = allocatedBytes();
+            for (int operation = index; ; operation += threads) {
+                long now = System.nanoTime();
+                if (period > 0) {
+                    while (now < scheduled) {
+                        LockSupport.parkNanos(scheduled - now);
+                        now = System.nanoTime();
+                    }
+                } else {
+                    scheduled = now;
+                }
+                if (scheduled >= deadline) {
+                    break;
+                }
+                try {
+                    signAndVerify(envelopes.get(operation % envelopes.size()), builder,
+                            serializer);
+                } catch (Exception e) {
+                    errors++;
+                    if (firstError == null) {
+                        firstError = e;
+                    }
+                }
+                latencies.record(System.nanoTime() - scheduled);
+                scheduled += period;
+            }
+            long allocatedAfter = allocatedBytes();
+            if (allocatedBefore >= 0 && allocatedAfter >= 0) {
+                allocatedBytes = allocatedAfter - allocatedBefore;
+            }
+        }
+    }
+    
+    /**
+     * Итог прогона.
+     */
+    static final class Result {
+        
+        long elapsedNanos;
+        /** Задержки операций, нс. */
+        LatencyHistogram latencies;
+        long errors;
+        Exception firstError;
+        /** -1, если неизвестно. */
+        long allocatedBytes;
+        long gcCount;
+        long gcMillis;
+        
+        long percentile(double argPercentile) {
+            return latencies.getValueAtPercentile(argPercentile);
+        }
+        
+        @Override
+        public String toString() {
+            long operations = latencies.getCount();
+            double seconds = elapsedNanos / 1e9;
+            return String.format("operations=%d, errors=%d, throughput=%.1f ops/s, p50=%.3f ms,"
+                    + " p99=%.3f ms, p999=%.3f ms, max=%.3f ms, allocated=%s, gc=%d (%d ms)",
+                    operations, errors, operations / seconds, percentile(50) / 1e6,
+                    percentile(99) / 1e6, percentile(99.9) / 1e6, percentile(100) / 1e6,
+                    allocatedBytes < 0 || operations == 0 ? "n/a"
+                            : allocatedBytes / operations + " bytes/op",
+                    gcCount, gcMillis);
+        }
+    }
+    
+    /**
+     * Гистограмма задержек фиксированного размера: значения до {@link #SUB_BUCKETS} нс хранятся
+     * точно, большие - в корзинах, делящих каждый интервал [2^k, 2^(k+1)) на {@link #SUB_BUCKETS}
+     * равных частей. Перцентиль - верхняя граница корзины, погрешность не больше
+     * 1/{@link #SUB_BUCKETS}. Память не зависит от числа операций. Не потокобезопасна: у каждого
+     * потока нагрузки своя, после прогона они складываются.
+     */
+    static final class LatencyHistogram {
+        
+        static final int SUB_BUCKETS = 32;
+        
+        private static final int SUB_BUCKET_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+        
+        private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+        private long count;
+        private long max;
+        
+        void record(long argValue) {
+            long value = Math.max(argValue, 0);
+            counts[bucketOf(value)]++;
+            count++;
+            max = Math.max(max, value);
+        }
+        
+        void add(LatencyHistogram argOther) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += argOther.counts[i];
+            }
+            count += argOther.count;
+            max = Math.max(max, argOther.max);
+        }
+        
+        long getCount() {
+            return count;
+        }
+        
+        /**
+         * Значение перцентиля argPercentile (0..100); 0, если значений нет.
+         */
+        long getValueAtPercentile(double argPercentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max((long) Math.ceil(count * argPercentile / 100), 1);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+        
+        private static int bucketOf(long argValue) {
+            if (argValue < SUB_BUCKETS) {
+                return (int) argValue;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(argValue) - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) (argValue >>> shift) - SUB_BUCKETS;
+        }
+        
+        private static long upperBound(int argBucket) {
+            if (argBucket < SUB_BUCKETS) {
+                return argBucket;
+            }
+            int shift = argBucket / SUB_BUCKETS - 1;
+            long next = (long) (SUB_BUCKETS + argBucket % SUB_BUCKETS + 1) << shift;
+            return next <= 0 ? Long.MAX_VALUE : next - 1;
+        }
+    }
+}
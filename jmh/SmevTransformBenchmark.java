@@ -0,0 +1,152 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.xml.security.signature.XMLSignatureInput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH-измерения трансформации "urn://smev-gov-ru/xmldsig/transform": process() и все три
+ * варианта enginePerformTransform на конвертах из {@link SmevEnvelopeCorpus}.
+ *
+ * Размер нагрузки, глубина вложенности, число namespace и атрибутов на элемент, реализация
+ * трансформации и потоковый режим дайджеста задаются параметрами (-p payloadSize=1024,...).
+ * Конверт-образец по умолчанию берётся из рабочего каталога, путь можно переопределить системным
+ * свойством smev3.bench.seed. Для нагрузки 100 МБ нужен heap порядка нескольких гигабайт.
+ *
+ * Запуск с профилировщиком GC (allocation rate, gc.alloc.rate.norm) - метод {@link #main(String[])}
+ * или ключ -prof gc штатного JMH runner.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class SmevTransformBenchmark {
+    
+    @Param({"1024", "102400", "10485760", "104857600"})
+    public int payloadSize;
+    
+    @Param({"8"})
+    public int depth;
+    
+    @Param({"4"})
+    public int namespaceCount;
+    
+    @Param({"2"})
+    public int attributesPerElement;
+    
+    @Param({"EVENT", "CURSOR"})
+    public String engine;
+    
+    @Param({"false"})
+    public boolean streamingDigest;
+    
+    @Param({"false"})
+    public boolean plans;
+    
+    private byte[] envelope;
+    private SmevTransformSpi transform;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        org.apache.xml.security.Init.init();
+        String seed = SmevEnvelopeCorpus.readSeed(
+                System.getProperty("smev3.bench.seed", SmevEnvelopeCorpus.DEFAULT_SEED));
+        envelope = SmevEnvelopeCorpus.generate(seed, payloadSize, depth, namespaceCount,
+                attributesPerElement);
+        SmevTransformSpi.setConfig(SmevTransformSpi.getConfig()
+                .withEngine(SmevTransformSpi.Engine.valueOf(engine))
+                .withStreamingDigest(streamingDigest)
+                .withPlansEnabled(plans));
+        transform = new SmevTransformSpi();
+    }
+    
+    @Benchmark
+    public void process(Blackhole argBlackhole) throws Exception {
+        BlackholeOutputStream sink = new BlackholeOutputStream(argBlackhole);
+        transform.process(new ByteArrayInputStream(envelope), sink);
+        argBlackhole.consume(sink.count);
+    }
+    
+    @Benchmark
+    public void performTransformToOutputStream(Blackhole argBlackhole) throws Exception {
+        BlackholeOutputStream sink = new BlackholeOutputStream(argBlackhole);
+        argBlackhole.consume(transform.enginePerformTransform(
+                new XMLSignatureInput(envelope), sink, null));
+        argBlackhole.consume(sink.count);
+    }
+    
+    @Benchmark
+    public void performTransformWithTransform(Blackhole argBlackhole) throws Exception {
+        consume(transform.enginePerformTransform(new XMLSignatureInput(envelope), null),
+                argBlackhole);
+    }
+    
+    @Benchmark
+    public void performTransform(Blackhole argBlackhole) throws Exception {
+        consume(transform.enginePerformTransform(new XMLSignatureInput(envelope)), argBlackhole);
+    }
+    
+    /**
+     * Дочитывает результат так же, как Santuario при вычислении DigestValue. В потоковом режиме
+     * трансформация выполняется именно здесь.
+     */
+    private static void consume(XMLSignatureInput argResult, Blackhole argBlackhole)
+            throws Exception {
+        BlackholeOutputStream sink = new BlackholeOutputStream(argBlackhole);
+        argResult.updateOutputStream(sink);
+        argBlackhole.consume(sink.count);
+    }
+    
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(SmevTransformBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+    
+    private static class BlackholeOutputStream extends OutputStream {
+        
+        private final Blackhole blackhole;
+        long count;
+        
+        BlackholeOutputStream(Blackhole arg) {
+            blackhole = arg;
+        }
+        
+        @Override
+        public void write(int b) {
+            blackhole.consume(b);
+            count++;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) {
+            blackhole.consume(b);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.xml.security.signature.XMLSignatureInput;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Трансформация поддерева DOM должна давать результат трансформации его канонической формы
+ * (inclusive c14n без комментариев), как в Santuario, - и при прямом обходе, и при канонизации
+ * поддеревьев, текст которых зависит от нарезки.
+ */
+public class SmevDomTransformerTest {
+    
+    @BeforeClass
+    public static void init() {
+        org.apache.xml.security.Init.init();
+    }
+    
+    @Test
+    public void bundledSample() throws Exception {
+        Document document = parse(SmevReferenceDigesterTest.read(
+                getClass().getResourceAsStream(SmevTransformWarmup.BUNDLED_SAMPLE)));
+        // Конверт обходится напрямую, без канонизации.
+        assertTrue(SmevDomTransformer.isSplitFree(document, null));
+        assertTransform(document);
+        for (Element element : elements(document)) {
+            assertTransform(element);
+        }
+    }
+    
+    @Test
+    public void inheritedXmlAttributes() throws Exception {
+        Document document = parse(("<r xml:lang=\"ru\" xml:space=\"preserve\" x=\"0\">"
+                + "<m xml:lang=\"en\" xml:base=\"urn:b\"><e xmlns=\"urn:e\" xml:space=\"default\""
+                + " b=\"1\" a=\"2\">t<f xml:lang=\"de\"/></e></m></r>").getBytes("UTF-8"));
+        for (Element element : elements(document)) {
+            assertTransform(element);
+        }
+    }
+    
+    @Test
+    public void markup() throws Exception {
+        Document document = parse(("<a:r xmlns:a=\"urn:a\" xmlns:b=\"urn:b\" b:z=\"1\" y=\"&lt;\">"
+                + "x<!-- c -->y<?p d?>z<![CDATA[w v]]><b:e/><a:e a:q=\"\" b:q=\"\" q=\"\">"
+                + "</a:e><e xmlns=\"urn:c\"><f/></e></a:r>").getBytes("UTF-8"));
+        assertTrue(SmevDomTransformer.isSplitFree(document, null));
+        assertTransform(document);
+        for (Element element : elements(document)) {
+            assertTransform(element);
+        }
+    }
+    
+    @Test
+    public void splitDependentText() throws Exception {
+        String[] texts = {"&amp;  ]] \n", "a \n b", "a ", " a", "a  &lt;", "a ]", "a" + spaces(33)
+                + "b", "x<!-- c -->  \n  <?pi d?> \n"};
+        for (String text : texts) {
+            Document document = parse(("<a:r xmlns:a=\"urn:a\"><a:t>" + text + "</a:t></a:r>")
+                    .getBytes("UTF-8"));
+            assertFalse(text, SmevDomTransformer.isSplitFree(document, null));
+            assertTransform(document);
+        }
+        Document document = parse(("<a:r xmlns:a=\"urn:a\"><a:t>a" + spaces(32) + "b\tc</a:t>"
+                + "<a:t> \n </a:t></a:r>").getBytes("UTF-8"));
+        assertTrue(SmevDomTransformer.isSplitFree(document, null));
+        assertTransform(document);
+    }
+    
+    @Test
+    public void randomText() throws Exception {
+        String[] units = {" ", "  ", "\t", "\n", "&#13;", "&amp;", "&lt;", "&gt;", "]", "]]",
+                "x", "yz", "ж", "&#x1F600;", "a b", "<!-- c -->", "<![CDATA[ ]]>", "<?p d?>"};
+        Random random = new Random(1);
+        int splitFree = 0;
+        for (int n = 0; n < 200; n++) {
+            StringBuilder body = new StringBuilder("<a:r xmlns:a=\"urn:a\">");
+            for (int node = 0; node < 4; node++) {
+                body.append("<a:t>");
+                boolean plain = random.nextBoolean();
+                int length = random.nextInt(10) < 8 ? random.nextInt(30) : random.nextInt(12000);
+                for (int i = 0; i < length; i++) {
+                    body.append(plain ? (random.nextInt(6) == 0 ? " " : "w")
+                            : units[random.nextInt(units.length)]);
+                }
+                body.append("</a:t>");
+            }
+            body.append("</a:r>");
+            Document document = parse(body.toString().getBytes("UTF-8"));
+            for (Element element : elements(document)) {
+                if (SmevDomTransformer.isSplitFree(element, null)) {
+                    splitFree++;
+                }
+                assertTransform(element);
+            }
+        }
+        // Проверены оба пути.
+        assertTrue(splitFree > 0 && splitFree < 200 * 5);
+    }
+    
+    @Test
+    public void enginePerformTransform() throws Exception {
+        Document document = parse(SmevReferenceDigesterTest.read(
+                getClass().getResourceAsStream(SmevTransformWarmup.BUNDLED_SAMPLE)));
+        for (Element element : elements(document)) {
+            byte[] expected = expected(element);
+            XMLSignatureInput result = new SmevTransformSpi().enginePerformTransform(
+                    new XMLSignatureInput(element));
+            assertArrayEquals(expected, result.getBytes());
+            
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            new SmevTransformSpi().enginePerformTransform(new XMLSignatureInput(element), output,
+                    null);
+            assertArrayEquals(expected, output.toByteArray());
+        }
+    }
+    
+    /**
+     * Сравнивает {@link SmevTransformSpi#process(Node, java.io.OutputStream)} с трансформацией
+     * канонической формы узла, с планами и без них.
+     */
+    private static void assertTransform(Node argNode) throws Exception {
+        byte[] expected = expected(argNode);
+        SmevTransformConfig config = SmevTransformSpi.getConfig();
+        for (boolean plans : new boolean[] {false, true, true}) {
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            new SmevTransformSpi(config.withPlansEnabled(plans)).process(argNode, actual);
+            assertArrayEquals(argNode.getNodeName(), expected, actual.toByteArray());
+        }
+    }
+    
+    private static byte[] expected(Node argNode) throws Exception {
+        byte[] canonical = new XMLSignatureInput(argNode).getBytes();
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        new SmevTransformReference().process(new ByteArrayInputStream(canonical), result);
+        return result.toByteArray();
+    }
+    
+    private static Document parse(byte[] argDocument) throws Exception {
+        return SmevTransformWarmup.newDocumentBuilderFactory().newDocumentBuilder()
+                .parse(new ByteArrayInputStream(argDocument));
+    }
+    
+    private static List<Element> elements(Document argDocument) {
+        List<Element> result = new ArrayList<Element>();
+        Node node = argDocument.getDocumentElement();
+        while (node != null) {
+            if (node instanceof Element) {
+                result.add((Element) node);
+            }
+            if (node.getFirstChild() != null) {
+                node = node.getFirstChild();
+            } else {
+                while (node != null && node.getNextSibling() == null) {
+                    node = node.getParentNode();
+                }
+                node = node != null ? node.getNextSibling() : null;
+            }
+        }
+        return result;
+    }
+    
+    private static String spaces(int argCount) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < argCount; i++) {
+            result.append(' ');
+        }
+        return result.toString();
+    }
+}
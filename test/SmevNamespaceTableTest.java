@@ -0,0 +1,74 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Таблица префиксов: нумерация nsN, области видимости, рост и сброс.
+ */
+public class SmevNamespaceTableTest {
+    
+    @Test
+    public void scopes() {
+        SmevNamespaceTable table = new SmevNamespaceTable();
+        table.pushScope();
+        assertEquals("ns1", table.declarePrefix("urn:a"));
+        table.pushScope();
+        assertEquals(1, table.scopeStart());
+        assertEquals("ns2", table.declarePrefix("urn:b"));
+        // Повторное объявление во вложенной области перекрывает внешнее.
+        assertEquals("ns3", table.declarePrefix("urn:a"));
+        assertEquals("ns3", table.findPrefix("urn:a"));
+        assertEquals(3, table.size());
+        assertEquals("urn:b", table.getURI(1));
+        assertEquals("ns2", table.getPrefix(1));
+        table.popScope();
+        
+        assertEquals("ns1", table.findPrefix("urn:a"));
+        assertNull(table.findPrefix("urn:b"));
+        assertEquals(1, table.size());
+        // Счётчик при закрытии области не уменьшается.
+        assertEquals("ns4", table.declarePrefix("urn:b"));
+        assertEquals(4, table.declaredCount());
+        table.popScope();
+        assertNull(table.findPrefix("urn:a"));
+        assertEquals(0, table.size());
+    }
+    
+    @Test
+    public void growth() {
+        SmevNamespaceTable table = new SmevNamespaceTable();
+        int count = 1000;
+        for (int i = 1; i <= count; i++) {
+            table.pushScope();
+            assertEquals("ns" + i, table.declarePrefix("urn:" + i));
+        }
+        for (int i = count; i >= 1; i--) {
+            assertEquals("ns" + i, table.findPrefix("urn:" + i));
+            table.popScope();
+            assertNull(table.findPrefix("urn:" + i));
+        }
+        assertEquals(count, table.declaredCount());
+    }
+    
+    @Test
+    public void reset() {
+        SmevNamespaceTable table = new SmevNamespaceTable();
+        table.pushScope();
+        table.declarePrefix("urn:a");
+        table.declarePrefix("urn:b");
+        table.reset();
+        assertEquals(0, table.size());
+        assertEquals(0, table.declaredCount());
+        assertNull(table.findPrefix("urn:a"));
+        table.pushScope();
+        assertEquals("ns1", table.declarePrefix("urn:b"));
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void noNamespace() {
+        new SmevNamespaceTable().findPrefix(null);
+    }
+}
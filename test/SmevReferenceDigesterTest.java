@@ -0,0 +1,242 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.xml.security.c14n.Canonicalizer;
+import org.apache.xml.security.transforms.TransformationException;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Дайджесты {@link SmevReferenceDigester} должны совпадать с дайджестами, которые получает
+ * Santuario: exc-c14n фрагмента DOM и {@link SmevTransformSpi} над результатом канонизации.
+ */
+public class SmevReferenceDigesterTest {
+    
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    
+    @BeforeClass
+    public static void init() {
+        org.apache.xml.security.Init.init();
+    }
+    
+    @Test
+    public void bundledSample() throws Exception {
+        byte[] envelope = read(getClass().getResourceAsStream(SmevTransformWarmup.BUNDLED_SAMPLE));
+        assertDigests(envelope, "SIGNED_BY_CONSUMER", "PERSONAL_SIGNATURE");
+        assertDigests(envelope, "PERSONAL_SIGNATURE", "sigID1");
+    }
+    
+    @Test
+    public void whitespaceAtEntityAndBracketBoundaries() throws Exception {
+        String[] texts = {"&amp;  ]] \n", "]]  \n&amp;", " \n&lt;\n ", "]\n]", "a]]&gt; \n",
+                "&#13;\n  ", "  <![CDATA[ ]] ]]>\n  x", "x<!-- c -->  \n  <?pi d?> \n"};
+        for (String text : texts) {
+            assertDigests(envelope("<p2:e0 xmlns:p2=\"urn:d\" Id=\"A\">" + text + "</p2:e0>"), "A");
+        }
+    }
+    
+    /**
+     * Границы буфера парсера (8 КБ) приходятся на пробелы, сущности и ']'.
+     */
+    @Test
+    public void textOverBufferBoundary() throws Exception {
+        String[] units = {" ", "\n", "&amp;", "]", "x"};
+        for (int shift = 0; shift < 24; shift++) {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < shift; i++) {
+                text.append('y');
+            }
+            for (int i = 0; text.length() < 20000; i++) {
+                text.append(units[i % units.length]);
+                if (i % 7 == 0) {
+                    text.append("  \n  ");
+                }
+            }
+            assertDigests(envelope("<a:big xmlns:a=\"urn:a\" Id=\"A\">" + text
+                    + "<a:in Id=\"B\">" + text + "</a:in></a:big>"), "A", "B");
+        }
+    }
+    
+    @Test
+    public void namespaces() throws Exception {
+        assertDigests(envelope("<r xmlns=\"urn:r\" xmlns:u=\"urn:unused\" Id=\"A\">"
+                + "<e xmlns=\"\"><f/></e>"
+                + "<p:e xmlns:p=\"urn:p\" xmlns:q=\"urn:q\" q:b=\"1\" a=\"2\" xml:lang=\"ru\">"
+                + "<p:e xmlns:p=\"urn:p2\" p:c=\"3\"/><q:e/></p:e>"
+                + "<s:e Id=\"B\" xmlns=\"\" s:z=\"&quot;&#9;&#10;&#13;&lt;&amp;\"/></r>"),
+                "A", "B");
+    }
+    
+    @Test
+    public void namespacesDeclaredOutsideFragment() throws Exception {
+        assertDigests(envelope("<r xmlns=\"urn:r\"><e Id=\"A\"><s:f/><g xmlns=\"\"/></e></r>"),
+                "A");
+    }
+    
+    /**
+     * Текст, результат которого не зависит от нарезки, обрабатывается за один разбор: конверт
+     * второй раз не читается.
+     */
+    @Test
+    public void singlePass() throws Exception {
+        byte[] envelope = envelope("<p:r xmlns:p=\"urn:p\" Id=\"A\">\n  <p:n>Иванов Иван</p:n>\n"
+                + "  <p:s Id=\"B\" p:x=\"1\">a&amp;b c&lt;d\te<!-- c -->f g<p:e/></p:s>\n"
+                + "  <p:t>   \n\n  </p:t><p:u>&#x1F600;x y]</p:u></p:r>");
+        InputStream source = new ByteArrayInputStream(envelope) {
+            
+            @Override
+            public synchronized void reset() {
+                throw new AssertionError("Envelope is read twice");
+            }
+        };
+        assertDigests(source, envelope, "A", "B");
+    }
+    
+    /**
+     * Случайный текст: пробелы рядом с сущностями, ']', переводами строк, краями узла и
+     * внутри содержимого, в том числе на границах буфера парсера.
+     */
+    @Test
+    public void randomText() throws Exception {
+        String[] units = {" ", "  ", "\t", "\n", "&#13;", "&amp;", "&lt;", "&gt;", "]", "]]",
+                "x", "yz", "ж", "&#x1F600;", "a b", "<!-- c -->", "<![CDATA[ ]]>", "<?p d?>"};
+        Random random = new Random(1);
+        for (int n = 0; n < 200; n++) {
+            StringBuilder body = new StringBuilder("<a:r xmlns:a=\"urn:a\" Id=\"A\">");
+            for (int i = random.nextInt(2) == 0 ? 0 : random.nextInt(9000); i > 0; i--) {
+                body.append('x');
+            }
+            body.append("<a:e Id=\"B\">");
+            for (int node = 0; node < 4; node++) {
+                body.append("<a:t>");
+                boolean plain = random.nextBoolean();
+                int length = random.nextInt(10) < 8 ? random.nextInt(30) : random.nextInt(12000);
+                for (int i = 0; i < length; i++) {
+                    body.append(plain ? (random.nextInt(6) == 0 ? " " : "w")
+                            : units[random.nextInt(units.length)]);
+                }
+                body.append("</a:t>");
+            }
+            body.append("</a:e></a:r>");
+            assertDigests(envelope(body.toString()), "A", "B");
+        }
+    }
+    
+    @Test
+    public void transform() throws Exception {
+        byte[] envelope = read(getClass().getResourceAsStream(SmevTransformWarmup.BUNDLED_SAMPLE));
+        Map<String, ByteArrayOutputStream> outputs =
+                new LinkedHashMap<String, ByteArrayOutputStream>();
+        outputs.put("SIGNED_BY_CONSUMER", new ByteArrayOutputStream());
+        outputs.put("PERSONAL_SIGNATURE", new ByteArrayOutputStream());
+        new SmevReferenceDigester().transform(new ByteArrayInputStream(envelope), outputs);
+        Map<String, byte[]> digests = new SmevReferenceDigester().digest(
+                new ByteArrayInputStream(envelope), outputs.keySet(), DIGEST_ALGORITHM);
+        for (Map.Entry<String, ByteArrayOutputStream> entry : outputs.entrySet()) {
+            assertArrayEquals(MessageDigest.getInstance(DIGEST_ALGORITHM).digest(
+                    entry.getValue().toByteArray()), digests.get(entry.getKey()));
+        }
+    }
+    
+    @Test(expected = TransformationException.class)
+    public void missingId() throws Exception {
+        new SmevReferenceDigester().digest(new ByteArrayInputStream(envelope("<r/>")),
+                Arrays.asList("A"), DIGEST_ALGORITHM);
+    }
+    
+    /**
+     * Проверяет дайджесты при чтении конверта потоком с mark/reset и без них.
+     */
+    private static void assertDigests(byte[] argEnvelope, String... argIds) throws Exception {
+        assertDigests(new ByteArrayInputStream(argEnvelope), argEnvelope, argIds);
+        assertDigests(new FilterInputStream(new ByteArrayInputStream(argEnvelope)) {
+            
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        }, argEnvelope, argIds);
+    }
+    
+    private static void assertDigests(InputStream argSource, byte[] argEnvelope,
+            String... argIds) throws Exception {
+        Map<String, byte[]> digests = new SmevReferenceDigester().digest(argSource,
+                Arrays.asList(argIds), DIGEST_ALGORITHM);
+        assertEquals(argIds.length, digests.size());
+        Document document = SmevTransformWarmup.newDocumentBuilderFactory().newDocumentBuilder()
+                .parse(new ByteArrayInputStream(argEnvelope));
+        for (String id : argIds) {
+            Element element = findById(document.getDocumentElement(), id);
+            if (element == null) {
+                fail("No element with Id " + id);
+            }
+            assertArrayEquals(id, expectedDigest(element), digests.get(id));
+        }
+    }
+    
+    private static byte[] expectedDigest(Element argElement) throws Exception {
+        byte[] canonical = Canonicalizer.getInstance(
+                Canonicalizer.ALGO_ID_C14N_EXCL_OMIT_COMMENTS).canonicalizeSubtree(argElement);
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        new SmevTransformSpi().process(new ByteArrayInputStream(canonical), result);
+        return MessageDigest.getInstance(DIGEST_ALGORITHM).digest(result.toByteArray());
+    }
+    
+    private static Element findById(Element argElement, String argId) {
+        if (argElement.hasAttributeNS(null, SmevReferenceDigester.DEFAULT_ID_ATTRIBUTE)
+                && argId.equals(argElement.getAttributeNS(null,
+                        SmevReferenceDigester.DEFAULT_ID_ATTRIBUTE))) {
+            return argElement;
+        }
+        for (Node child = argElement.getFirstChild(); child != null;
+                child = child.getNextSibling()) {
+            if (child instanceof Element) {
+                Element result = findById((Element) child, argId);
+                if (result != null) {
+                    return result;
+                }
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Конверт SOAP с фрагментом argBody в Body.
+     */
+    private static byte[] envelope(String argBody) throws IOException {
+        return ("<S:Envelope xmlns:S=\"http://schemas.xmlsoap.org/soap/envelope/\""
+                + " xmlns:s=\"urn:outer\"><S:Body>" + argBody + "</S:Body></S:Envelope>")
+                .getBytes("UTF-8");
+    }
+    
+    static byte[] read(InputStream argIn) throws IOException {
+        try {
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = argIn.read(buffer)) != -1) {
+                result.write(buffer, 0, count);
+            }
+            return result.toByteArray();
+        } finally {
+            argIn.close();
+        }
+    }
+}
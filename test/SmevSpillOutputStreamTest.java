@@ -0,0 +1,125 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Результат в heap до порога и во временном файле после него; файл доступен только владельцу и
+ * удаляется при дочитывании, закрытии потока результата и {@link SmevSpillOutputStream#discard()}.
+ */
+public class SmevSpillOutputStreamTest {
+    
+    private File directory;
+    
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("smev3-spill-test").toFile();
+    }
+    
+    @After
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+    
+    @Test
+    public void inMemory() throws IOException {
+        SmevSpillOutputStream stream = new SmevSpillOutputStream(16, directory);
+        byte[] data = write(stream, 16);
+        assertFalse(stream.isSpilled());
+        assertEquals(16, stream.size());
+        assertEquals(0, directory.listFiles().length);
+        assertArrayEquals(data, read(stream.getInputStream()));
+    }
+    
+    @Test
+    public void spilled() throws IOException {
+        SmevSpillOutputStream stream = new SmevSpillOutputStream(16, directory);
+        byte[] data = write(stream, 100);
+        assertTrue(stream.isSpilled());
+        assertEquals(100, stream.size());
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            assertEquals(EnumSet.of(PosixFilePermission.OWNER_READ,
+                    PosixFilePermission.OWNER_WRITE),
+                    Files.getPosixFilePermissions(files[0].toPath()));
+        }
+        InputStream in = stream.getInputStream();
+        assertArrayEquals(data, read(in));
+        // Дочитанный результат удаляется сразу, не дожидаясь close().
+        assertEquals(0, directory.listFiles().length);
+        in.close();
+    }
+    
+    @Test
+    public void closedBeforeEnd() throws IOException {
+        SmevSpillOutputStream stream = new SmevSpillOutputStream(0, directory);
+        stream.write(1);
+        assertTrue(stream.isSpilled());
+        InputStream in = stream.getInputStream();
+        in.close();
+        assertEquals(0, directory.listFiles().length);
+    }
+    
+    @Test
+    public void discard() throws IOException {
+        SmevSpillOutputStream stream = new SmevSpillOutputStream(4, directory);
+        write(stream, 10);
+        assertEquals(1, directory.listFiles().length);
+        stream.discard();
+        assertEquals(0, directory.listFiles().length);
+        stream.discard();
+    }
+    
+    /**
+     * Пишет argCount байт то массивами, то по одному.
+     */
+    private static byte[] write(SmevSpillOutputStream argStream, int argCount)
+            throws IOException {
+        byte[] data = new byte[argCount];
+        for (int i = 0; i < argCount; i++) {
+            data[i] = (byte) i;
+        }
+        int i = 0;
+        while (i < argCount) {
+            if (i % 2 == 0) {
+                argStream.write(data[i++]);
+            } else {
+                int length = Math.min(argCount - i, 7);
+                argStream.write(data, i, length);
+                i += length;
+            }
+        }
+        return data;
+    }
+    
+    private static byte[] read(InputStream argIn) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        int b;
+        while ((b = argIn.read()) != -1) {
+            result.write(b);
+        }
+        return result.toByteArray();
+    }
+}
@@ -0,0 +1,158 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.xml.security.transforms.TransformationException;
+import org.junit.Test;
+
+/**
+ * Пакет: результаты в порядке входных данных, ошибка элемента - в его результате, отказ
+ * Executor - ошибка всего пакета.
+ */
+public class SmevTransformBatchTest {
+    
+    private static final int FAILING = 7;
+    
+    /** Выполняет задачи в вызывающем потоке. */
+    private static final Executor CALLER = new Executor() {
+        
+        @Override
+        public void execute(Runnable argTask) {
+            argTask.run();
+        }
+    };
+    
+    @Test
+    public void transformAndDigest() throws Exception {
+        List<byte[]> documents = documents(50);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            SmevTransformBatch batch = new SmevTransformBatch(executor);
+            List<SmevTransformBatch.Result> transformed = batch.transform(documents);
+            List<SmevTransformBatch.Result> digests = batch.digest(documents, "SHA-256");
+            assertEquals(documents.size(), transformed.size());
+            assertEquals(documents.size(), digests.size());
+            for (int i = 0; i < documents.size(); i++) {
+                SmevTransformBatch.Result result = transformed.get(i);
+                SmevTransformBatch.Result digest = digests.get(i);
+                assertEquals(i, result.getIndex());
+                assertEquals(i, digest.getIndex());
+                if (i == FAILING) {
+                    assertFalse(result.isSuccess());
+                    assertNull(result.getData());
+                    assertTrue(result.getError() instanceof TransformationException);
+                    assertFalse(digest.isSuccess());
+                    continue;
+                }
+                byte[] expected = reference(documents.get(i));
+                assertTrue(result.isSuccess());
+                assertNull(result.getError());
+                assertArrayEquals(expected, result.getData());
+                assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(expected),
+                        digest.getData());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test(expected = NoSuchAlgorithmException.class)
+    public void unknownAlgorithm() throws Exception {
+        new SmevTransformBatch(CALLER).digest(documents(1), "NO-SUCH-DIGEST");
+    }
+    
+    @Test
+    public void rejected() throws Exception {
+        final List<Runnable> accepted = new ArrayList<Runnable>();
+        Executor executor = new Executor() {
+            
+            @Override
+            public void execute(Runnable argTask) {
+                if (accepted.size() == 5) {
+                    throw new RejectedExecutionException("full");
+                }
+                accepted.add(argTask);
+            }
+        };
+        try {
+            new SmevTransformBatch(executor).transform(documents(10));
+            fail("Rejection is not reported");
+        } catch (TransformationException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        // Уже переданные задачи отменяются.
+        assertEquals(5, accepted.size());
+        for (Runnable task : accepted) {
+            assertTrue(((Future<?>) task).isCancelled());
+        }
+    }
+    
+    @Test
+    public void error() throws Exception {
+        final Error error = new StackOverflowError();
+        try {
+            new SmevTransformBatch(CALLER).transformStreams(Collections.singletonList(
+                    new ByteArrayInputStream(new byte[0]) {
+                        
+                        @Override
+                        public synchronized int read() {
+                            throw error;
+                        }
+                        
+                        @Override
+                        public synchronized int read(byte[] argBuffer, int argOffset,
+                                int argLength) {
+                            throw error;
+                        }
+                    }));
+            fail("Error is not rethrown");
+        } catch (StackOverflowError e) {
+            // Error не относится к одному элементу и прерывает пакет.
+            assertSame(error, e);
+        }
+    }
+    
+    /**
+     * Документы разной длины; документ {@link #FAILING} не является XML.
+     */
+    private static List<byte[]> documents(int argCount) {
+        List<byte[]> result = new ArrayList<byte[]>();
+        for (int i = 0; i < argCount; i++) {
+            if (i == FAILING) {
+                result.add("<a><b></a>".getBytes());
+                continue;
+            }
+            StringBuilder document = new StringBuilder("<a:r xmlns:a=\"urn:a\" n=\"" + i + "\">");
+            for (int j = 0; j < i; j++) {
+                document.append("<b:e xmlns:b=\"urn:b\" a:x=\"").append(j).append("\">t</b:e>");
+            }
+            result.add(document.append("</a:r>").toString().getBytes());
+        }
+        return result;
+    }
+    
+    private static byte[] reference(byte[] argDocument) throws Exception {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        new SmevTransformReference().process(new ByteArrayInputStream(argDocument), result);
+        return result.toByteArray();
+    }
+}
@@ -0,0 +1,149 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.xml.security.signature.XMLSignatureInput;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Кэш результатов: побайтное сравнение входа, вытеснение, режим StAX-фабрик записи и
+ * выключение кэша глобальными настройками.
+ */
+public class SmevTransformCacheTest {
+    
+    private static final byte[] DOCUMENT = "<a:r xmlns:a=\"urn:a\"><a:b x=\"1\">t</a:b></a:r>"
+            .getBytes();
+            
+    private SmevTransformConfig savedConfig;
+    
+    @Before
+    public void saveConfig() {
+        savedConfig = SmevTransformSpi.getConfig();
+    }
+    
+    @After
+    public void restoreConfig() {
+        SmevTransformSpi.setConfig(savedConfig);
+    }
+    
+    @Test
+    public void hitRequiresSameBytes() {
+        SmevTransformCache cache = new SmevTransformCache(1 << 20, 1 << 10);
+        byte[] input = "input".getBytes();
+        cache.put(input, "output".getBytes(), stats(false));
+        assertArrayEquals("output".getBytes(), cache.get("input".getBytes(), false).getOutput());
+        assertNull(cache.get("other".getBytes(), false));
+        
+        // Вход копируется: изменение массива вызывающего запись не портит.
+        input[0] = 'I';
+        assertNull(cache.get(input, false));
+        assertNotNull(cache.get("input".getBytes(), false));
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        
+        assertTrue(cache.accepts(1 << 10));
+        assertFalse(cache.accepts((1 << 10) + 1));
+    }
+    
+    @Test
+    public void eviction() {
+        long maxBytes = SmevTransformCache.SEGMENTS * 3000L;
+        SmevTransformCache cache = new SmevTransformCache(maxBytes, 1 << 20);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(("document" + i).getBytes(), new byte[1000], stats(false));
+        }
+        assertTrue(cache.getEvictions() > 0);
+        assertTrue(cache.getSize() <= maxBytes);
+        assertTrue(cache.getEntryCount() <= 2 * SmevTransformCache.SEGMENTS);
+        // Последняя запись не вытеснена.
+        assertNotNull(cache.get("document999".getBytes(), false));
+        
+        // Запись больше сегмента не сохраняется.
+        cache.put("large".getBytes(), new byte[4000], stats(false));
+        assertNull(cache.get("large".getBytes(), false));
+        
+        cache.clear();
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, cache.getSize());
+    }
+    
+    @Test
+    public void hardened() {
+        SmevTransformCache cache = new SmevTransformCache(1 << 20, 1 << 10);
+        cache.put("plain".getBytes(), new byte[1], stats(false));
+        cache.put("hardened".getBytes(), new byte[1], stats(true));
+        // Результат обычного режима в защищённом не выдаётся, защищённого - выдаётся в обоих.
+        assertNull(cache.get("plain".getBytes(), true));
+        assertNotNull(cache.get("plain".getBytes(), false));
+        assertNotNull(cache.get("hardened".getBytes(), true));
+        assertNotNull(cache.get("hardened".getBytes(), false));
+    }
+    
+    @Test
+    public void enabledByConfig() throws Exception {
+        SmevTransformCache cache = SmevTransformSpi.getCache();
+        byte[] expected = transform(DOCUMENT);
+        final List<SmevTransformStats> seen = new ArrayList<SmevTransformStats>();
+        SmevTransformListener listener = new SmevTransformListener() {
+            
+            @Override
+            public void transformCompleted(SmevTransformStats argStats) {
+                seen.add(argStats);
+            }
+            
+            @Override
+            public void transformFailed(SmevTransformStats argStats, Exception argError) {
+                seen.add(argStats);
+            }
+        };
+        SmevTransformSpi.addListener(listener);
+        try {
+            SmevTransformSpi.setConfig(savedConfig.withCacheEnabled(true));
+            long hits = cache.getHits();
+            for (int run = 0; run < 3; run++) {
+                assertArrayEquals(expected, new SmevTransformSpi().enginePerformTransform(
+                        new XMLSignatureInput(DOCUMENT)).getBytes());
+            }
+            assertEquals(hits + 2, cache.getHits());
+            assertEquals(3, seen.size());
+            assertFalse(seen.get(0).isCached());
+            assertTrue(seen.get(2).isCached());
+            assertEquals(DOCUMENT.length, seen.get(2).getBytesIn());
+            assertEquals(expected.length, seen.get(2).getBytesOut());
+            
+            // Выключение в глобальных настройках очищает кэш и действует на все экземпляры.
+            SmevTransformSpi.setConfig(savedConfig.withCacheEnabled(false));
+            assertEquals(0, cache.getEntryCount());
+            new SmevTransformSpi(savedConfig.withCacheEnabled(true)).enginePerformTransform(
+                    new XMLSignatureInput(DOCUMENT));
+            assertEquals(0, cache.getEntryCount());
+            assertEquals(hits + 2, cache.getHits());
+        } finally {
+            SmevTransformSpi.removeListener(listener);
+        }
+    }
+    
+    private static SmevTransformStats stats(boolean argHardened) {
+        SmevTransformStats result = new SmevTransformStats(SmevTransformSpi.Engine.CURSOR);
+        result.setHardened(argHardened);
+        return result;
+    }
+    
+    private static byte[] transform(byte[] argDocument) throws Exception {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        new SmevTransformReference().process(new ByteArrayInputStream(argDocument), result);
+        return result.toByteArray();
+    }
+}
@@ -0,0 +1,70 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Пул контекстов: повторное использование, ёмкость и поколения при смене режима фабрик.
+ */
+public class SmevTransformContextPoolTest {
+    
+    @Test
+    public void reuse() {
+        SmevTransformContextPool pool = new SmevTransformContextPool(2, false);
+        SmevTransformContext first = pool.acquire();
+        SmevTransformContext second = pool.acquire();
+        assertNotSame(first, second);
+        first.release();
+        second.release();
+        // Повторный возврат ничего не делает.
+        second.release();
+        SmevTransformContext third = pool.acquire();
+        assertTrue(third == first || third == second);
+        third.release();
+        
+        // Ёмкость ограничена: лишний контекст отбрасывается, пул уже полон.
+        SmevTransformContext[] contexts = {pool.acquire(), pool.acquire(), pool.acquire()};
+        for (SmevTransformContext context : contexts) {
+            context.release();
+        }
+        assertEquals(0, pool.prefill());
+    }
+    
+    @Test
+    public void generations() {
+        SmevTransformContextPool pool = new SmevTransformContextPool(4, false);
+        assertEquals(4, pool.prefill());
+        SmevTransformContext stale = pool.acquire();
+        assertFalse(stale.isHardened());
+        
+        pool.setHardened(true);
+        assertTrue(pool.isHardened());
+        // Контекст прежнего поколения при возврате не сохраняется.
+        stale.release();
+        SmevTransformContext current = pool.acquire();
+        assertNotSame(stale, current);
+        assertTrue(current.isHardened());
+        assertEquals(stale.getGeneration() + 1, current.getGeneration());
+        current.release();
+        assertSame(current, pool.acquire());
+        current.release();
+    }
+    
+    @Test
+    public void otherMode() {
+        SmevTransformContextPool pool = new SmevTransformContextPool(4, true);
+        // Контекст другого режима создаётся на одну трансформацию и в пул не попадает.
+        SmevTransformContext transient1 = pool.acquire(false);
+        assertFalse(transient1.isHardened());
+        transient1.release();
+        SmevTransformContext transient2 = pool.acquire(false);
+        assertNotSame(transient1, transient2);
+        transient2.release();
+        assertEquals(4, pool.prefill());
+    }
+}
@@ -0,0 +1,91 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.apache.xml.security.transforms.TransformationException;
+import org.junit.Test;
+
+/**
+ * Метрики: счётчики по оповещениям listeners и перцентили гистограмм по корзинам степеней двойки.
+ */
+public class SmevTransformMetricsTest {
+    
+    @Test
+    public void counters() {
+        SmevTransformMetrics metrics = new SmevTransformMetrics();
+        metrics.transformCompleted(stats(100, 80, 3, 2, 500));
+        metrics.transformCompleted(stats(200, 150, 5, 1, 700));
+        metrics.transformFailed(stats(10, 0, 1, 0, 50), new Exception());
+        assertEquals(2, metrics.getTransforms());
+        assertEquals(1, metrics.getFailures());
+        assertEquals(310, metrics.getBytesIn());
+        assertEquals(230, metrics.getBytesOut());
+        assertEquals(9, metrics.getElements());
+        assertEquals(3, metrics.getAttributes());
+        assertEquals(3, metrics.getLatencyNanos().getCount());
+        assertEquals(700, metrics.getLatencyNanos().getMax());
+        assertEquals(200, metrics.getInputSize().getMax());
+        assertEquals(150, metrics.getOutputSize().getMax());
+        assertEquals(5, metrics.getElementCount().getMax());
+    }
+    
+    @Test
+    public void histogram() {
+        SmevTransformMetrics.Histogram histogram = new SmevTransformMetrics.Histogram();
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        for (int value = 1; value <= 100; value++) {
+            histogram.record(value);
+        }
+        histogram.record(-5);
+        assertEquals(101, histogram.getCount());
+        assertEquals(100, histogram.getMax());
+        // Перцентиль - верхняя граница корзины, но не больше максимума.
+        assertEquals(64, histogram.getValueAtPercentile(50));
+        assertEquals(100, histogram.getValueAtPercentile(99));
+        assertEquals(100, histogram.getValueAtPercentile(100));
+        assertEquals(1, histogram.getValueAtPercentile(0));
+    }
+    
+    @Test
+    public void listener() throws Exception {
+        SmevTransformMetrics metrics = new SmevTransformMetrics();
+        SmevTransformSpi.addListener(metrics);
+        try {
+            byte[] document = "<a:r xmlns:a=\"urn:a\" x=\"1\"><a:b/></a:r>".getBytes("UTF-8");
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            new SmevTransformSpi().process(new ByteArrayInputStream(document), output);
+            assertTrue(metrics.getBytesIn() >= document.length);
+            assertEquals(output.size(), metrics.getBytesOut());
+            assertTrue(metrics.getElements() >= 2);
+            // Неудачная трансформация учитывается вместе с уже записанной частью результата.
+            try {
+                new SmevTransformSpi().process(new ByteArrayInputStream("<a><b></a>".getBytes()),
+                        new ByteArrayOutputStream());
+                fail("Malformed document is transformed");
+            } catch (TransformationException e) {
+                // Ожидаемо.
+            }
+            assertEquals(1, metrics.getTransforms());
+            assertEquals(1, metrics.getFailures());
+            assertTrue(metrics.getBytesOut() >= output.size());
+            assertEquals(2, metrics.getLatencyNanos().getCount());
+        } finally {
+            SmevTransformSpi.removeListener(metrics);
+        }
+    }
+    
+    private static SmevTransformStats stats(long argBytesIn, long argBytesOut, long argElements,
+            long argAttributes, long argNanos) {
+        SmevTransformStats result = new SmevTransformStats(SmevTransformSpi.Engine.CURSOR);
+        result.addBytesIn(argBytesIn);
+        result.addBytesOut(argBytesOut);
+        result.addElements(argElements, argAttributes);
+        result.setDurationNanos(argNanos);
+        return result;
+    }
+}
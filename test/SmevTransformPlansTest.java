@@ -0,0 +1,150 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.xml.stream.XMLInputFactory;
+
+import org.junit.Test;
+
+/**
+ * Трансформация по планам {@link SmevTransformPlans}: отклонение от плана, исчерпание лимитов и
+ * одновременное обучение дают результат исходной реализации.
+ */
+public class SmevTransformPlansTest {
+    
+    private static final String DOCUMENT = "<a:r xmlns:a=\"urn:a\" id=\"1\"><a:b x=\"2\" a:y=\"3\">"
+            + "<c xmlns=\"urn:c\">t</c><a:d/></a:b><a:b x=\"4\" a:y=\"5\"/></a:r>";
+            
+    /** Элементов в {@link #DOCUMENT}, то есть шагов его плана. */
+    private static final int DOCUMENT_STEPS = 5;
+    
+    @Test
+    public void learnAndFollow() throws Exception {
+        SmevTransformPlans plans = new SmevTransformPlans(4, 100);
+        assertTransform(plans, DOCUMENT);
+        assertEquals(DOCUMENT_STEPS, plans.getStepCount());
+        assertTransform(plans, DOCUMENT);
+        assertTransform(plans, DOCUMENT.replace("t<", "other text<").replace("\"2\"", "\"&lt;\""));
+        assertEquals(DOCUMENT_STEPS, plans.getStepCount());
+        assertEquals(1, plans.getMisses());
+        assertEquals(2, plans.getHits());
+    }
+    
+    @Test
+    public void deviation() throws Exception {
+        SmevTransformPlans plans = new SmevTransformPlans(4, 100);
+        assertTransform(plans, DOCUMENT);
+        // Лишний атрибут, другой namespace, другой порядок атрибутов, новый элемент: документ
+        // расходится с планом посередине, дальше идёт обычным путём и достраивает план.
+        String[] deviations = {DOCUMENT.replace("<a:d/>", "<a:d z=\"6\"/>"),
+                DOCUMENT.replace("xmlns=\"urn:c\"", "xmlns=\"urn:a\""),
+                DOCUMENT.replace("x=\"2\" a:y=\"3\"", "a:y=\"3\" x=\"2\""),
+                DOCUMENT.replace("<a:d/>", "<a:d/><e:e xmlns:e=\"urn:e\" e:a=\"7\"/>"),
+                DOCUMENT.replace("</a:r>", "<a:b/></a:r>")};
+        for (String deviation : deviations) {
+            long misses = plans.getMisses();
+            assertTransform(plans, deviation);
+            assertEquals(misses + 1, plans.getMisses());
+            long hits = plans.getHits();
+            assertTransform(plans, deviation);
+            assertEquals(hits + 1, plans.getHits());
+        }
+        assertTransform(plans, DOCUMENT);
+        assertEquals(1, plans.getPlanCount());
+    }
+    
+    @Test
+    public void stepLimit() throws Exception {
+        SmevTransformPlans plans = new SmevTransformPlans(4, 2);
+        for (int run = 0; run < 3; run++) {
+            assertTransform(plans, DOCUMENT);
+        }
+        assertEquals(2, plans.getStepCount());
+        assertEquals(0, plans.getHits());
+        
+        // Лимит считается для каждого вида корневого тега отдельно.
+        assertTransform(plans, DOCUMENT.replace("a:r", "a:other"));
+        assertEquals(4, plans.getStepCount());
+        assertEquals(2, plans.getPlanCount());
+    }
+    
+    @Test
+    public void planLimit() throws Exception {
+        SmevTransformPlans plans = new SmevTransformPlans(2, 100);
+        assertTransform(plans, DOCUMENT);
+        assertTransform(plans, DOCUMENT.replace("a:r", "a:second"));
+        assertTransform(plans, DOCUMENT);
+        // Третий вид вытесняет давно не использованный второй, первый остаётся.
+        assertTransform(plans, DOCUMENT.replace("a:r", "a:third"));
+        assertEquals(1, plans.getEvictions());
+        assertEquals(2, plans.getPlanCount());
+        long hits = plans.getHits();
+        assertTransform(plans, DOCUMENT);
+        assertEquals(hits + 1, plans.getHits());
+        assertTransform(plans, DOCUMENT.replace("a:r", "a:second"));
+        assertEquals(hits + 1, plans.getHits());
+        assertEquals(2, plans.getEvictions());
+        
+        SmevTransformPlans disabled = new SmevTransformPlans(0, 100);
+        assertTransform(disabled, DOCUMENT);
+        assertTransform(disabled, DOCUMENT);
+        assertEquals(0, disabled.getPlanCount());
+        assertEquals(0, disabled.getHits());
+    }
+    
+    @Test
+    public void concurrentLearning() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            final SmevTransformPlans plans = new SmevTransformPlans(4, 100);
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            Thread[] threads = new Thread[8];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread() {
+                    
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            assertTransform(plans, DOCUMENT);
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+            // Шаги, одновременно выученные несколькими потоками, не дублируются.
+            assertEquals(1, plans.getPlanCount());
+            assertEquals(DOCUMENT_STEPS, plans.getStepCount());
+            assertTransform(plans, DOCUMENT);
+        }
+    }
+    
+    private static void assertTransform(SmevTransformPlans argPlans, String argDocument)
+            throws Exception {
+        byte[] document = argDocument.getBytes("UTF-8");
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        new SmevTransformReference().process(new ByteArrayInputStream(document), expected);
+        
+        SmevCursorTransformer transformer = new SmevCursorTransformer(
+                XMLInputFactory.newInstance());
+        transformer.setPlans(argPlans);
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        transformer.process(new ByteArrayInputStream(document), actual);
+        assertArrayEquals(argDocument, expected.toByteArray(), actual.toByteArray());
+    }
+}
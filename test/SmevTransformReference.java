@@ -0,0 +1,182 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Stack;
+
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.EndElement;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Исходная реализация {@link SmevTransformSpi#process(InputStream, OutputStream)} (до
+ * оптимизаций) без debug-лога: эталон для сравнения результатов в тестах. Не изменять.
+ */
+final class SmevTransformReference {
+    
+    private static final String NS_PREFIX = "ns";
+    private static final String ENCODING_UTF_8 = "UTF-8";
+    
+    private static AttributeSortingComparator attributeSortingComparator =
+            new AttributeSortingComparator();
+            
+    private final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+    private final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+    private final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+    
+    void process(InputStream argSrc, OutputStream argDst)
+            throws XMLStreamException, IOException {
+            
+        Stack<List<Namespace>> prefixMappingStack = new Stack<List<Namespace>>();
+        int prefixCnt = 1;
+        XMLEventReader src = inputFactory.createXMLEventReader(argSrc, ENCODING_UTF_8);
+        XMLEventWriter dst = outputFactory.createXMLEventWriter(argDst, ENCODING_UTF_8);
+        XMLEventFactory factory = eventFactory;
+        try {
+            while (src.hasNext()) {
+                XMLEvent event = src.nextEvent();
+                
+                if (event.isCharacters()) {
+                    String data = event.asCharacters().getData();
+                    // Отсекаем возвраты каретки и пробельные строки.
+                    if (!data.trim().isEmpty()) {
+                        dst.add(event);
+                    }
+                    continue;
+                } else if (event.isStartElement()) {
+                    List<Namespace> myPrefixMappings = new LinkedList<Namespace>();
+                    prefixMappingStack.push(myPrefixMappings);
+                    
+                    StartElement srcEvent = (StartElement) event;
+                    String nsURI = srcEvent.getName().getNamespaceURI();
+                    String prefix = findPrefix(nsURI, prefixMappingStack);
+                    
+                    if (prefix == null) {
+                        prefix = NS_PREFIX + String.valueOf(prefixCnt++);
+                        myPrefixMappings.add(factory.createNamespace(prefix, nsURI));
+                    }
+                    StartElement dstEvent = factory.createStartElement(
+                            prefix, nsURI, srcEvent.getName().getLocalPart());
+                    dst.add(dstEvent);
+                    
+                    Iterator<Attribute> srcAttributeIterator = srcEvent.getAttributes();
+                    List<Attribute> srcAttributeList = new LinkedList<Attribute>();
+                    while (srcAttributeIterator.hasNext()) {
+                        srcAttributeList.add(srcAttributeIterator.next());
+                    }
+                    Collections.sort(srcAttributeList, attributeSortingComparator);
+                    
+                    List<Attribute> dstAttributeList = new LinkedList<Attribute>();
+                    for (Attribute srcAttribute : srcAttributeList) {
+                        String attributeNsURI = srcAttribute.getName().getNamespaceURI();
+                        String attributeLocalName = srcAttribute.getName().getLocalPart();
+                        String value = srcAttribute.getValue();
+                        String attributePrefix = null;
+                        Attribute dstAttribute = null;
+                        if (attributeNsURI != null && !"".equals(attributeNsURI)) {
+                            attributePrefix = findPrefix(attributeNsURI, prefixMappingStack);
+                            if (attributePrefix == null) {
+                                attributePrefix = NS_PREFIX + String.valueOf(prefixCnt++);
+                                myPrefixMappings.add(factory.createNamespace(
+                                        attributePrefix, attributeNsURI));
+                            }
+                            dstAttribute = factory.createAttribute(
+                                    attributePrefix, attributeNsURI, attributeLocalName, value);
+                        } else {
+                            dstAttribute = factory.createAttribute(attributeLocalName, value);
+                        }
+                        dstAttributeList.add(dstAttribute);
+                    }
+                    
+                    for (Namespace mapping : myPrefixMappings) {
+                        dst.add(mapping);
+                    }
+                    for (Attribute attr : dstAttributeList) {
+                        dst.add(attr);
+                    }
+                    continue;
+                } else if (event.isEndElement()) {
+                    // Гарантируем, что empty tags запишутся в форме <a></a>, а не в форме <a/>.
+                    dst.add(factory.createSpace(""));
+                    
+                    EndElement srcEvent = (EndElement) event;
+                    String nsURI = srcEvent.getName().getNamespaceURI();
+                    String prefix = findPrefix(nsURI, prefixMappingStack);
+                    if (prefix == null) {
+                        throw new IllegalStateException(
+                                "EndElement: prefix mapping is not found for namespace " + nsURI);
+                    }
+                    
+                    dst.add(factory.createEndElement(prefix, nsURI,
+                            srcEvent.getName().getLocalPart()));
+                    prefixMappingStack.pop();
+                }
+            }
+        } finally {
+            src.close();
+            dst.close();
+            argSrc.close();
+            argDst.close();
+        }
+    }
+    
+    private static String findPrefix(String argNamespaceURI,
+            Stack<List<Namespace>> argMappingStack) {
+        if (argNamespaceURI == null) {
+            throw new IllegalArgumentException("No namespace элементы не поддерживаются.");
+        }
+        
+        for (List<Namespace> elementMappingList : argMappingStack) {
+            for (Namespace mapping : elementMappingList) {
+                if (argNamespaceURI.equals(mapping.getNamespaceURI())) {
+                    return mapping.getPrefix();
+                }
+            }
+        }
+        return null;
+    }
+    
+    private static class AttributeSortingComparator implements Comparator<Attribute> {
+        
+        @Override
+        public int compare(Attribute x, Attribute y) {
+            String xNS = x.getName().getNamespaceURI();
+            String xLocal = x.getName().getLocalPart();
+            String yNS = y.getName().getNamespaceURI();
+            String yLocal = y.getName().getLocalPart();
+            
+            // Сначала сравниваем namespaces.
+            if (xNS == null || xNS.equals("")) {
+                if (yNS != null && !"".equals(xNS)) {
+                    return 1;
+                }
+            } else {
+                if (yNS == null || "".equals(yNS)) {
+                    return -1;
+                } else {
+                    int nsComparisonResult = xNS.compareTo(yNS);
+                    if (nsComparisonResult != 0) {
+                        return nsComparisonResult;
+                    }
+                }
+            }
+            
+            // Если namespaces признаны эквивалентными, сравниваем local names.
+            return xLocal.compareTo(yLocal);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.xml.security.signature.XMLSignatureInput;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Результат {@link SmevTransformSpi} во всех реализациях и режимах должен побайтно совпадать с
+ * результатом исходной реализации ({@link SmevTransformReference}).
+ */
+public class SmevTransformSpiTest {
+    
+    /**
+     * Сколько раз трансформируется каждый документ: планы выучиваются на первом прогоне и
+     * применяются на следующих, кэш заполняется первым прогоном.
+     */
+    private static final int RUNS = 3;
+    
+    private static List<byte[]> documents;
+    
+    private SmevTransformConfig savedConfig;
+    
+    @BeforeClass
+    public static void init() throws Exception {
+        org.apache.xml.security.Init.init();
+        documents = new ArrayList<byte[]>();
+        documents.add(SmevReferenceDigesterTest.read(SmevTransformSpiTest.class
+                .getResourceAsStream(SmevTransformWarmup.BUNDLED_SAMPLE)));
+        String[] texts = {"x<![CDATA[ <b> & ]]]]><![CDATA[>]]>y", "<![CDATA[  \n  ]]>",
+                "a &amp; b &lt; c &gt; d &#x41;&#13;&#10;", "]]&gt;", "]]\n>", "] ]]\n\n]",
+                "  \n  &amp;  \n", "\r\n  текст \r\n", "&quot;'\t\n ", "<!-- c --> \n <?p d?>x"};
+        for (String text : texts) {
+            documents.add(envelope("<p:e xmlns:p=\"urn:p\" p:a=\"1\" b=\"&lt;2&gt;\">" + text
+                    + "<p:f>" + text + "</p:f><q:g xmlns:q=\"urn:q\" xmlns=\"urn:d\">" + text
+                    + "<h q:c=\"3\" a=\"&quot;&#9;&#10;\">" + text + "</h></q:g></p:e>"));
+        }
+        // Текст длиннее буфера парсера (8 КБ): границы буфера приходятся на пробелы,
+        // переводы строк, сущности, ']' и многобайтные символы.
+        String[] units = {" ", "\n", "&amp;", "]", "x", "ж", "]]&gt;", "<![CDATA[]]>"};
+        for (int shift = 0; shift < 8; shift++) {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < shift; i++) {
+                text.append('y');
+            }
+            for (int i = 0; text.length() < 20000; i++) {
+                text.append(units[i % units.length]);
+                if (i % 7 == 0) {
+                    text.append("  \n  ");
+                }
+            }
+            documents.add(envelope("<a:big xmlns:a=\"urn:a\">" + text + "<a:in a:x=\"1\">" + text
+                    + "</a:in></a:big>"));
+        }
+    }
+    
+    @Before
+    public void saveConfig() {
+        savedConfig = SmevTransformSpi.getConfig();
+    }
+    
+    @After
+    public void restoreConfig() {
+        SmevTransformSpi.setConfig(savedConfig);
+    }
+    
+    @Test
+    public void process() throws Exception {
+        for (SmevTransformSpi.Engine engine : SmevTransformSpi.Engine.values()) {
+            for (boolean plans : new boolean[] {false, true}) {
+                SmevTransformSpi.setConfig(savedConfig.withEngine(engine)
+                        .withPlansEnabled(plans));
+                for (byte[] document : documents) {
+                    byte[] expected = reference(document);
+                    for (int run = 0; run < RUNS; run++) {
+                        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+                        new SmevTransformSpi().process(new ByteArrayInputStream(document),
+                                actual);
+                        assertArrayEquals(engine + " plans=" + plans, expected,
+                                actual.toByteArray());
+                    }
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void enginePerformTransform() throws Exception {
+        SmevTransformConfig[] configs = {savedConfig.withCacheEnabled(false),
+                savedConfig.withCacheEnabled(false).withSpillThreshold(0),
+                savedConfig.withCacheEnabled(false).withStreamingDigest(true),
+                savedConfig.withCacheEnabled(false).withStreamingDigest(true)
+                        .withPlansEnabled(true),
+                savedConfig.withCacheEnabled(true)};
+        long hits = SmevTransformSpi.getCache().getHits();
+        for (SmevTransformConfig config : configs) {
+            SmevTransformSpi.setConfig(config);
+            for (byte[] document : documents) {
+                byte[] expected = reference(document);
+                for (int run = 0; run < RUNS; run++) {
+                    XMLSignatureInput result = new SmevTransformSpi().enginePerformTransform(
+                            new XMLSignatureInput(document));
+                    assertArrayEquals(config.toString(), expected, result.getBytes());
+                    
+                    ByteArrayOutputStream output = new ByteArrayOutputStream();
+                    new SmevTransformSpi().enginePerformTransform(
+                            new XMLSignatureInput(document), output, null);
+                    assertArrayEquals(config.toString(), expected, output.toByteArray());
+                }
+            }
+        }
+        // С кэшем только первая из 2 * RUNS трансформаций документа выполняется.
+        assertEquals((2 * RUNS - 1) * documents.size(),
+                SmevTransformSpi.getCache().getHits() - hits);
+    }
+    
+    @Test
+    public void digest() throws Exception {
+        for (byte[] document : documents) {
+            assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(reference(document)),
+                    new SmevTransformSpi().digest(new ByteArrayInputStream(document),
+                            MessageDigest.getInstance("SHA-256")));
+        }
+    }
+    
+    private static byte[] reference(byte[] argDocument) throws Exception {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        new SmevTransformReference().process(new ByteArrayInputStream(argDocument), result);
+        return result.toByteArray();
+    }
+    
+    private static byte[] envelope(String argBody) throws Exception {
+        return ("<S:Envelope xmlns:S=\"http://schemas.xmlsoap.org/soap/envelope/\"><S:Body>"
+                + argBody + "</S:Body></S:Envelope>").getBytes("UTF-8");
+    }
+}
@@ -0,0 +1,114 @@
+package ru.alfabank.ccjava.trustcore.smev3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Прогрев: образцы прогоняются с переданными настройками, глобальные настройки не меняются,
+ * ошибки попадают в отчёт.
+ */
+public class SmevTransformWarmupTest {
+    
+    private static final int ITERATIONS = 3;
+    
+    private SmevTransformConfig savedConfig;
+    
+    @Before
+    public void saveConfig() {
+        savedConfig = SmevTransformSpi.getConfig();
+    }
+    
+    @After
+    public void restoreConfig() {
+        SmevTransformSpi.setConfig(savedConfig);
+    }
+    
+    @Test
+    public void run() throws Exception {
+        SmevTransformWarmup warmup = new SmevTransformWarmup();
+        warmup.addBundledSample();
+        warmup.setIterations(ITERATIONS);
+        SmevTransformConfig config = savedConfig.withEngine(SmevTransformSpi.Engine.EVENT)
+                .withHardenedFactories(!savedConfig.isHardenedFactories());
+        SmevTransformWarmup.Report report = warmup.run(config);
+        assertTrue(String.valueOf(report.getError()), report.isReady());
+        assertSame(savedConfig, SmevTransformSpi.getConfig());
+        assertEquals(1, report.getSamples());
+        // Поток, enginePerformTransform и DOM на каждый прогон.
+        assertEquals(3 * ITERATIONS, report.getTransforms());
+        // Контексты другого режима фабрик заранее не создаются.
+        assertEquals(0, report.getContexts());
+        assertSame(report, SmevTransformWarmup.getReport());
+        assertTrue(SmevTransformWarmup.isReady());
+    }
+    
+    @Test
+    public void plans() throws Exception {
+        SmevTransformSpi.setConfig(savedConfig.withPlansEnabled(true));
+        SmevTransformSpi.getPlans().clear();
+        SmevTransformWarmup warmup = new SmevTransformWarmup();
+        warmup.addBundledSample();
+        warmup.setIterations(ITERATIONS);
+        SmevTransformWarmup.Report report = warmup.run(savedConfig.withPlansEnabled(true)
+                .withEngine(SmevTransformSpi.Engine.CURSOR));
+        assertTrue(String.valueOf(report.getError()), report.isReady());
+        assertTrue(report.getPlanSteps() > 0);
+    }
+    
+    @Test
+    public void failure() {
+        SmevTransformWarmup warmup = new SmevTransformWarmup();
+        warmup.addSample("<a><b></a>".getBytes());
+        warmup.setIterations(1);
+        SmevTransformWarmup.Report report = warmup.run();
+        assertFalse(report.isReady());
+        assertFalse(SmevTransformWarmup.isReady());
+        assertNotNull(report.getError());
+        assertEquals(1, report.getFailures());
+    }
+    
+    @Test
+    public void samplesFromDirectory() throws IOException {
+        File directory = Files.createTempDirectory("smev3-warmup-test").toFile();
+        File[] files = {new File(directory, "b.xml"), new File(directory, "a.xml"),
+                new File(directory, "c.txt")};
+        try {
+            for (File file : files) {
+                FileOutputStream out = new FileOutputStream(file);
+                try {
+                    out.write("<a:r xmlns:a=\"urn:a\"/>".getBytes("UTF-8"));
+                } finally {
+                    out.close();
+                }
+            }
+            SmevTransformWarmup warmup = new SmevTransformWarmup();
+            warmup.addSamples(directory);
+            warmup.setIterations(1);
+            SmevTransformWarmup.Report report = warmup.run();
+            assertTrue(String.valueOf(report.getError()), report.isReady());
+            assertEquals(2, report.getSamples());
+        } finally {
+            for (File file : files) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void iterations() {
+        new SmevTransformWarmup().setIterations(0);
+    }
+}